@@ -3,6 +3,7 @@ module transport {
     requires javafx.fxml;
     requires com.google.gson;
     requires java.logging;
+    requires jdk.httpserver;
 
     // Open packages that need to be accessed via reflection (like for FXML)
     opens transport to javafx.fxml;
@@ -10,6 +10,7 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.TextArea;
 import javafx.stage.Stage;
+import transport.server.StartupReport;
 
 public class Main extends Application {
     @Override
@@ -22,6 +23,7 @@ public class Main extends Application {
             primaryStage.setTitle("Transport Management System");
             primaryStage.setScene(scene);
             primaryStage.show();
+            StartupReport.log("GUI");
         } catch (Exception e) {
             System.err.println("Error starting application: " + e.getMessage());
             e.printStackTrace();
@@ -1,16 +1,24 @@
 package transport.core;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.UUID;
 
 public class CartePersonnelle extends TitreTransport {
+    public static final int DUREE_VALIDITE_ANNEES = 1;
+
     private TypeCarte type;
+    private LocalDate dateExpiration;
+    // Expiration day cached so that validity is a single comparison
+    private long expirationEpochDay;
 
     public CartePersonnelle(Personne usager) throws ReductionImpossibleException {
-        this(usager, LocalDateTime.now());
+        this(usager, DayClock.getDefault().now());
     }
     
     public CartePersonnelle(Personne usager, LocalDateTime dateAchat) throws ReductionImpossibleException {
         super(usager, dateAchat);
         this.prix = 5000;
+        setDateExpiration(dateExpirationParDefaut(dateAchat));
 
         // Calcul des réductions possibles
         double minPrix = this.prix;
@@ -60,18 +68,51 @@ public class CartePersonnelle extends TitreTransport {
     
     // Constructor for deserialization
     public CartePersonnelle(Personne usager, LocalDateTime dateAchat, Integer prix, TypeCarte type) {
-        super(usager, dateAchat);
+        this(usager.getId(), dateAchat, prix, type);
+    }
+
+    // Constructor for deserialization, without loading the Personne
+    public CartePersonnelle(UUID personneId, LocalDateTime dateAchat, Integer prix, TypeCarte type) {
+        this(personneId, dateAchat, prix, type, dateExpirationParDefaut(dateAchat));
+    }
+
+    // Constructor for deserialization, with the expiration date of the record
+    public CartePersonnelle(UUID personneId, LocalDateTime dateAchat, Integer prix, TypeCarte type,
+            LocalDate dateExpiration) {
+        super(personneId, dateAchat);
         this.prix = prix;
         this.type = type;
+        setDateExpiration(dateExpiration);
     }
 
     public TypeCarte getType() {
         return type;
     }
 
+    public LocalDate getDateExpiration() {
+        return dateExpiration;
+    }
+
+    public void setDateExpiration(LocalDate dateExpiration) {
+        this.dateExpiration = dateExpiration;
+        this.expirationEpochDay = dateExpiration.toEpochDay();
+    }
+
+    public long getExpirationEpochDay() {
+        return expirationEpochDay;
+    }
+
+    /**
+     * Cards bought before expiration dates existed expire one validity period
+     * after their purchase
+     */
+    public static LocalDate dateExpirationParDefaut(LocalDateTime dateAchat) {
+        return dateAchat.toLocalDate().plusYears(DUREE_VALIDITE_ANNEES);
+    }
+
     @Override
     public boolean isValid() {
-        // Carte toujours valide
-        return true;
+        // Valide jusqu'à la veille de la date d'expiration
+        return DayClock.getDefault().today() < expirationEpochDay;
     }
 }
@@ -0,0 +1,82 @@
+package transport.core;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Clock caching the current day. Today's epoch day is computed once per day and
+ * then answered by comparing the current time with the cached day boundaries,
+ * so validity checks do not build a LocalDate on every call.
+ * <p>
+ * The shared instance uses the system clock; tests can replace it with one
+ * built on a fixed or offset {@link Clock}.
+ */
+public final class DayClock {
+
+    private static volatile DayClock defaultClock = new DayClock(Clock.systemDefaultZone());
+
+    private final Clock clock;
+    private volatile Day current;
+
+    public DayClock(Clock clock) {
+        this.clock = clock;
+        this.current = computeDay(clock.millis());
+    }
+
+    public static DayClock getDefault() {
+        return defaultClock;
+    }
+
+    public static void setDefault(DayClock dayClock) {
+        defaultClock = dayClock;
+    }
+
+    /**
+     * Today's epoch day in the clock's zone
+     */
+    public long today() {
+        long now = clock.millis();
+        Day day = current;
+        if (now < day.startMillis || now >= day.endMillis) {
+            day = computeDay(now);
+            current = day;
+        }
+        return day.epochDay;
+    }
+
+    public LocalDate todayDate() {
+        return LocalDate.ofEpochDay(today());
+    }
+
+    public LocalDateTime now() {
+        return LocalDateTime.now(clock);
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    private Day computeDay(long now) {
+        ZoneId zone = clock.getZone();
+        LocalDate date = Instant.ofEpochMilli(now).atZone(zone).toLocalDate();
+        long start = date.atStartOfDay(zone).toInstant().toEpochMilli();
+        long end = date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        return new Day(date.toEpochDay(), start, end);
+    }
+
+    private static final class Day {
+
+        final long epochDay;
+        final long startMillis;
+        final long endMillis;
+
+        Day(long epochDay, long startMillis, long endMillis) {
+            this.epochDay = epochDay;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package transport.core;
 
-import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.UUID;
 
 public class Ticket extends TitreTransport {
     private boolean used = false;
+    // Purchase day cached so that validity is a single comparison
+    private final long purchaseEpochDay;
 
     public Ticket(Personne personne, LocalDateTime dateAchat) {
         super(personne, dateAchat);
         this.prix = 50;
+        this.purchaseEpochDay = dateAchat.toLocalDate().toEpochDay();
+    }
+
+    // Constructor for deserialization
+    public Ticket(UUID personneId, LocalDateTime dateAchat, boolean used) {
+        super(personneId, dateAchat);
+        this.prix = 50;
+        this.used = used;
+        this.purchaseEpochDay = dateAchat.toLocalDate().toEpochDay();
     }
 
 
@@ -16,7 +27,11 @@ public class Ticket extends TitreTransport {
     @Override
     public boolean isValid() {
         // Valide si non utilisé et la date d'achat est aujourd'hui
-        return !used && dateAchat.toLocalDate().equals(LocalDate.now());
+        return !used && purchaseEpochDay == DayClock.getDefault().today();
+    }
+
+    public long getPurchaseEpochDay() {
+        return purchaseEpochDay;
     }
 
     public boolean isUsed() {
@@ -11,6 +11,7 @@ public abstract class TitreTransport {
     protected LocalDateTime dateAchat;
     protected Integer prix;
     protected UUID personneId;
+    protected ModeDePaiement modeDePaiement;
 
     public Integer getCurrentId() {
         return currentId;
@@ -21,9 +22,13 @@ public abstract class TitreTransport {
     }
 
     TitreTransport(Personne usager, LocalDateTime dateAchat) {
-        id++;
-        currentId = id;
-        this.personneId = usager.getId();
+        this(usager.getId(), dateAchat);
+    }
+
+    // Constructor for deserialization, the Personne does not need to be loaded
+    TitreTransport(UUID personneId, LocalDateTime dateAchat) {
+        currentId = nextId();
+        this.personneId = personneId;
         this.dateAchat = dateAchat;
     }
 
@@ -43,5 +48,42 @@ public abstract class TitreTransport {
         return this.prix.toString();
     }
 
+    public int getPrixValue() {
+        return prix != null ? prix : 0;
+    }
+
+    /**
+     * @return The payment mode, or null for titres sold before it was recorded
+     */
+    public ModeDePaiement getModeDePaiement() {
+        return modeDePaiement;
+    }
+
+    public void setModeDePaiement(ModeDePaiement modeDePaiement) {
+        this.modeDePaiement = modeDePaiement;
+    }
+
+    /**
+     * Makes sure newly created titres never reuse an id already loaded from disk
+     */
+    public static synchronized void reserveId(int usedId) {
+        if (usedId > id) {
+            id = usedId;
+        }
+    }
+
+    /**
+     * Gives this titre a fresh id, used when a loaded id collides with another
+     */
+    public void renumber() {
+        currentId = nextId();
+    }
+
+    // Titres may be issued concurrently for different personnes
+    private static synchronized Integer nextId() {
+        id++;
+        return id;
+    }
+
     public abstract boolean isValid();
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package transport.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import transport.services.DataMigrator;
+import transport.services.ImportResult;
+
+/**
+ * Entry point of the headless runtime. It never touches JavaFX, so it runs on
+ * the plain class path without the JavaFX modules. With --http, the HTTP/JSON
+ * API for gates and kiosks is started as well. With --export or --import, the
+ * three stores are written to or read from newline-delimited JSON files in the
+ * given directory (gzipped with --gzip), and the runtime exits. With --migrate,
+ * the data files are upgraded to the current schema version, without starting
+ * the runtime:
+ *
+ * <pre>
+ * java -cp target/classes:gson-2.10.1.jar transport.server.HeadlessMain [--workers N] [--http PORT]
+ * java -cp target/classes:gson-2.10.1.jar transport.server.HeadlessMain --export DIR [--gzip]
+ * java -cp target/classes:gson-2.10.1.jar transport.server.HeadlessMain --import DIR [--workers N]
+ * java -cp target/classes:gson-2.10.1.jar transport.server.HeadlessMain --migrate
+ * </pre>
+ */
+public class HeadlessMain {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int workers = Runtime.getRuntime().availableProcessors();
+        int httpPort = -1;
+        File exportDirectory = null;
+        File importDirectory = null;
+        boolean gzip = false;
+        boolean migrate = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--workers".equals(args[i]) && i + 1 < args.length) {
+                workers = Integer.parseInt(args[++i]);
+            } else if ("--http".equals(args[i]) && i + 1 < args.length) {
+                httpPort = Integer.parseInt(args[++i]);
+            } else if ("--export".equals(args[i]) && i + 1 < args.length) {
+                exportDirectory = new File(args[++i]);
+            } else if ("--import".equals(args[i]) && i + 1 < args.length) {
+                importDirectory = new File(args[++i]);
+            } else if ("--gzip".equals(args[i])) {
+                gzip = true;
+            } else if ("--migrate".equals(args[i])) {
+                migrate = true;
+            } else {
+                System.err.println("Unknown argument: " + args[i]);
+                System.err.println("Usage: HeadlessMain [--workers N] [--http PORT]"
+                        + " | --export DIR [--gzip] | --import DIR [--workers N] | --migrate");
+                System.exit(1);
+            }
+        }
+
+        if (migrate) {
+            Map<String, DataMigrator.FileMigration> migrated = DataMigrator.migrate(new File("data"), workers);
+            System.out.println(migrated.isEmpty()
+                    ? "Data files already at schema version " + DataMigrator.CURRENT_VERSION
+                    : "Migrated to schema version " + DataMigrator.CURRENT_VERSION + ": " + migrated);
+            return;
+        }
+
+        HeadlessRuntime runtime = new HeadlessRuntime(workers);
+        if (exportDirectory != null || importDirectory != null) {
+            try {
+                if (exportDirectory != null) {
+                    exportStores(runtime, exportDirectory, gzip ? ".ndjson.gz" : ".ndjson");
+                }
+                if (importDirectory != null) {
+                    importStores(runtime, importDirectory, workers);
+                }
+            } finally {
+                runtime.close();
+            }
+            return;
+        }
+        TransportHttpServer httpServer = null;
+        if (httpPort >= 0) {
+            httpServer = new TransportHttpServer(runtime, httpPort);
+            httpServer.start();
+        }
+        StartupReport.log("Headless");
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        TransportHttpServer server = httpServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (server != null) {
+                server.close();
+            }
+            runtime.close();
+            stopped.countDown();
+        }, "transport-shutdown"));
+        stopped.await();
+    }
+
+    private static void exportStores(HeadlessRuntime runtime, File directory, String extension) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create export directory " + directory);
+        }
+        int personnes = runtime.getPersonneService().exportNdjson(new File(directory, "personnes" + extension));
+        int titres = runtime.getTitreTransportService().exportNdjson(new File(directory, "titres" + extension));
+        int reclamations = runtime.getReclamationService().exportNdjson(new File(directory, "reclamations" + extension));
+        System.out.println("Exported " + personnes + " personnes, " + titres + " titres and " + reclamations
+                + " reclamations to " + directory);
+    }
+
+    /**
+     * Imports the files found in the directory, personnes first since titres
+     * and reclamations refer to them
+     */
+    private static void importStores(HeadlessRuntime runtime, File directory, int workers) throws IOException {
+        File personnes = ndjsonFile(directory, "personnes");
+        if (personnes != null) {
+            report(personnes, runtime.getPersonneService().importNdjson(personnes, workers));
+        }
+        File titres = ndjsonFile(directory, "titres");
+        if (titres != null) {
+            report(titres, runtime.getTitreTransportService().importNdjson(titres, workers));
+        }
+        File reclamations = ndjsonFile(directory, "reclamations");
+        if (reclamations != null) {
+            report(reclamations, runtime.getReclamationService().importNdjson(reclamations, workers));
+        }
+    }
+
+    private static File ndjsonFile(File directory, String store) {
+        File plain = new File(directory, store + ".ndjson");
+        if (plain.isFile()) {
+            return plain;
+        }
+        File gzipped = new File(directory, store + ".ndjson.gz");
+        return gzipped.isFile() ? gzipped : null;
+    }
+
+    private static void report(File file, ImportResult result) {
+        System.out.println(file + ": imported " + result.getImportedCount() + " of " + result.getLineCount()
+                + " records");
+        for (ImportResult.LineError error : result.getErrors()) {
+            System.out.println("  " + error);
+        }
+        for (ImportResult.LineError warning : result.getWarnings()) {
+            System.out.println("  Avertissement, " + warning);
+        }
+    }
+}
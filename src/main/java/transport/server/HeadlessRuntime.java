@@ -0,0 +1,200 @@
+package transport.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import transport.core.CartePersonnelle;
+import transport.services.DistinctRiderStats;
+import transport.services.GateSyncService;
+import transport.services.HeavyHitterStats;
+import transport.services.PersonneService;
+import transport.services.ReclamationLatencyStats;
+import transport.services.ReclamationService;
+import transport.services.ReclamationStats;
+import transport.services.ReclamationWorkQueue;
+import transport.services.RevenueRollup;
+import transport.services.TicketTokenService;
+import transport.services.TitreColumnStore;
+import transport.services.TitreEventPipeline;
+import transport.services.TitreTransportListener;
+import transport.services.TitreTransportService;
+
+/**
+ * Runs the services without any JavaFX class: the stores, the point-of-sale
+ * pipeline and the worker pool on which the HTTP API serves gates and kiosks
+ */
+public class HeadlessRuntime implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(HeadlessRuntime.class.getName());
+    private static final int PIPELINE_CAPACITY = 4096;
+    private static final long TIMER_CHECK_PERIOD_SECONDS = 60;
+    private static final int QUEUED_TASKS_PER_THREAD = 64;
+
+    private final PersonneService personneService;
+    private final TitreTransportService titreTransportService;
+    private final RevenueRollup revenueRollup;
+    private final TitreColumnStore titreColumnStore;
+    private final DistinctRiderStats distinctRiderStats;
+    private final ReclamationService reclamationService;
+    private final ReclamationWorkQueue reclamationWorkQueue;
+    private final ReclamationStats reclamationStats;
+    private final ReclamationLatencyStats reclamationLatencyStats;
+    private final HeavyHitterStats heavyHitterStats;
+    private final TitreEventPipeline pipeline;
+    private final GateSyncService gateSyncService;
+    private final TicketTokenService ticketTokenService;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timers;
+
+    /**
+     * @param workerThreads Number of threads of the worker pool
+     */
+    public HeadlessRuntime(int workerThreads) {
+        personneService = new PersonneService();
+        titreTransportService = new TitreTransportService(personneService);
+        revenueRollup = new RevenueRollup(titreTransportService);
+        titreColumnStore = new TitreColumnStore(titreTransportService, personneService);
+        distinctRiderStats = new DistinctRiderStats(titreTransportService);
+        reclamationService = new ReclamationService(personneService);
+        reclamationWorkQueue = new ReclamationWorkQueue(reclamationService);
+        reclamationStats = new ReclamationStats(reclamationService);
+        reclamationLatencyStats = new ReclamationLatencyStats(reclamationService);
+        heavyHitterStats = new HeavyHitterStats(reclamationService, titreTransportService);
+        gateSyncService = new GateSyncService(titreTransportService);
+        ticketTokenService = new TicketTokenService(titreTransportService);
+
+        // Reports the carte timers fired by checkDay(); renewals go through
+        // POST /api/tickets/renew
+        titreTransportService.addListener(new TitreTransportListener() {
+            @Override
+            public void onRenewalReminder(CartePersonnelle carte) {
+                LOGGER.info("Carte " + carte.getCurrentId() + " of personne " + carte.getPersonneId()
+                        + " expires on " + carte.getDateExpiration() + " and should be renewed");
+            }
+
+            @Override
+            public void onCarteExpired(CartePersonnelle carte) {
+                LOGGER.info("Carte " + carte.getCurrentId() + " of personne " + carte.getPersonneId() + " expired on "
+                        + carte.getDateExpiration());
+            }
+        });
+
+        pipeline = TitreEventPipeline.forService(titreTransportService, PIPELINE_CAPACITY);
+        pipeline.start();
+
+        workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(workerThreads * QUEUED_TASKS_PER_THREAD), new WorkerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+
+        // Fires ticket expiry and carte timers shortly after midnight, and
+        // reclamation escalations shortly after their deadline
+        timers = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transport-timers");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timers.scheduleAtFixedRate(() -> {
+            titreTransportService.checkDay();
+            reclamationWorkQueue.checkSla();
+        }, TIMER_CHECK_PERIOD_SECONDS, TIMER_CHECK_PERIOD_SECONDS, TimeUnit.SECONDS);
+        LOGGER.info("Headless runtime started with " + workerThreads + " worker threads");
+    }
+
+    public PersonneService getPersonneService() {
+        return personneService;
+    }
+
+    public TitreTransportService getTitreTransportService() {
+        return titreTransportService;
+    }
+
+    public RevenueRollup getRevenueRollup() {
+        return revenueRollup;
+    }
+
+    public TitreColumnStore getTitreColumnStore() {
+        return titreColumnStore;
+    }
+
+    public DistinctRiderStats getDistinctRiderStats() {
+        return distinctRiderStats;
+    }
+
+    public ReclamationService getReclamationService() {
+        return reclamationService;
+    }
+
+    public ReclamationWorkQueue getReclamationWorkQueue() {
+        return reclamationWorkQueue;
+    }
+
+    public ReclamationStats getReclamationStats() {
+        return reclamationStats;
+    }
+
+    public ReclamationLatencyStats getReclamationLatencyStats() {
+        return reclamationLatencyStats;
+    }
+
+    public HeavyHitterStats getHeavyHitterStats() {
+        return heavyHitterStats;
+    }
+
+    public GateSyncService getGateSyncService() {
+        return gateSyncService;
+    }
+
+    public TicketTokenService getTicketTokenService() {
+        return ticketTokenService;
+    }
+
+    public TitreEventPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * The pool running the requests of the HTTP API. Its queue is bounded and
+     * rejects tasks once full.
+     */
+    public ExecutorService getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Stops the worker pool, then drains the pipeline
+     */
+    @Override
+    public void close() {
+        timers.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        pipeline.close();
+        LOGGER.info("Headless runtime stopped");
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "transport-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package transport.server;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.logging.Logger;
+
+/**
+ * Measures how long the process took to become ready and how much heap it uses,
+ * so the headless runtime can be compared with the JavaFX launch
+ */
+public final class StartupReport {
+
+    private static final Logger LOGGER = Logger.getLogger(StartupReport.class.getName());
+
+    private StartupReport() {
+    }
+
+    /**
+     * Logs the time elapsed since the JVM started and the heap currently used
+     *
+     * @param mode The launch mode, e.g. "GUI" or "headless"
+     */
+    public static void log(String mode) {
+        Runtime runtime = Runtime.getRuntime();
+        long usedMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+        long committedMb = runtime.totalMemory() / (1024 * 1024);
+        LOGGER.info(String.format("%s startup: ready in %d ms, heap used %d MB (committed %d MB)",
+                mode, sinceJvmStart().toMillis(), usedMb, committedMb));
+    }
+
+    /**
+     * Time elapsed since the JVM process started
+     */
+    public static Duration sinceJvmStart() {
+        return ProcessHandle.current().info().startInstant()
+                .map(start -> Duration.between(start, Instant.now()))
+                .orElse(Duration.ZERO);
+    }
+}
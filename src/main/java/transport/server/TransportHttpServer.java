@@ -0,0 +1,814 @@
+package transport.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import transport.core.CartePersonnelle;
+import transport.core.DayClock;
+import transport.core.Employe;
+import transport.core.ModeDePaiement;
+import transport.core.Personne;
+import transport.core.Reclamation;
+import transport.core.ReclamationStatus;
+import transport.core.ReclamationType;
+import transport.core.Ticket;
+import transport.core.TitreTransport;
+import transport.core.TypeCarte;
+import transport.services.DistinctRiderStats;
+import transport.services.GateSyncService;
+import transport.services.HeavyHitterStats;
+import transport.services.PersonneService;
+import transport.services.LatencyHistogram;
+import transport.services.ReclamationLatencyStats;
+import transport.services.ReclamationService;
+import transport.services.ReclamationStats;
+import transport.services.ReclamationWorkQueue;
+import transport.services.RingTimeSeries;
+import transport.services.SpaceSavingSketch;
+import transport.services.RevenueRollup;
+import transport.services.TicketTokenService;
+import transport.services.TitreColumnStore;
+import transport.services.TitreEvent;
+import transport.services.TitreEventPipeline;
+import transport.services.TitreTransportService;
+
+/**
+ * Embedded HTTP/JSON API for gates and ticket kiosks, built on the JDK HTTP
+ * server. Sales and validations go through the point-of-sale pipeline; when its
+ * ring is full the request is answered with 429 instead of queuing more work.
+ * Requests run on the worker pool of the runtime. When its bounded queue is
+ * full the request is answered with 503 at once, and request bodies over 1 MiB
+ * with 413.
+ *
+ * <pre>
+ * POST /api/tickets               {"personneId", "modeDePaiement", "type": "Ticket"|"CartePersonnelle"}
+ * POST /api/tickets/batch         [sale, ...]
+ * POST /api/tickets/verify        {"token"}
+ * POST /api/tickets/renew         {"titreId"}
+ * POST /api/validations           {"titreId"}
+ * POST /api/validations/batch     [validation, ...]
+ * GET  /api/personnes/{id}
+ * GET  /api/reclamations?personneId={id}
+ * POST /api/reclamations          {"personneId", "description", "type"}
+ * POST /api/reclamations/batch    [reclamation, ...]
+ * POST /api/reclamations/claim    {"agent"}
+ * POST /api/reclamations/release  {"reclamationId"}
+ * POST /api/reclamations/process  {"ids": [id, ...], "status": "TRAITE"|"REFUSE"|"ANNULE", "reponse"}
+ * GET  /api/sync/delta?epoch={epoch}&amp;since={sequence}
+ * POST /api/sync/usage            [{"idempotencyKey", "gateId", "titreId", "usedAt" (epoch ms)}, ...]
+ * GET  /api/stats/revenue?day={yyyy-MM-dd}
+ * GET  /api/stats/reclamations?day={yyyy-MM-dd}
+ * GET  /api/stats/reclamations/latency[?from={yyyy-MM-dd}&amp;to={yyyy-MM-dd}]
+ * GET  /api/stats/revenue/monthly
+ * GET  /api/stats/riders?day={yyyy-MM-dd}
+ * GET  /api/stats/top?k={count}
+ * GET  /api/stats/rates?resolution={second|minute|hour}&amp;buckets={count}
+ * GET  /api/stats/cartes/age-bands?width={years}
+ * </pre>
+ */
+public class TransportHttpServer implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(TransportHttpServer.class.getName());
+    private static final long PIPELINE_TIMEOUT_SECONDS = 10;
+    private static final int MAX_BODY_BYTES = 1 << 20;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final PersonneService personneService;
+    private final TitreTransportService titreTransportService;
+    private final ReclamationService reclamationService;
+    private final ReclamationWorkQueue reclamationWorkQueue;
+    private final GateSyncService gateSyncService;
+    private final TicketTokenService ticketTokenService;
+    private final RevenueRollup revenueRollup;
+    private final ReclamationStats reclamationStats;
+    private final ReclamationLatencyStats reclamationLatencyStats;
+    private final TitreColumnStore titreColumnStore;
+    private final DistinctRiderStats distinctRiderStats;
+    private final HeavyHitterStats heavyHitterStats;
+    private final TitreEventPipeline pipeline;
+
+    /**
+     * @param runtime The runtime whose services are exposed and whose worker
+     * pool runs the requests
+     */
+    public TransportHttpServer(HeadlessRuntime runtime, int port) throws IOException {
+        this.personneService = runtime.getPersonneService();
+        this.titreTransportService = runtime.getTitreTransportService();
+        this.reclamationService = runtime.getReclamationService();
+        this.reclamationWorkQueue = runtime.getReclamationWorkQueue();
+        this.gateSyncService = runtime.getGateSyncService();
+        this.ticketTokenService = runtime.getTicketTokenService();
+        this.revenueRollup = runtime.getRevenueRollup();
+        this.reclamationStats = runtime.getReclamationStats();
+        this.reclamationLatencyStats = runtime.getReclamationLatencyStats();
+        this.titreColumnStore = runtime.getTitreColumnStore();
+        this.distinctRiderStats = runtime.getDistinctRiderStats();
+        this.heavyHitterStats = runtime.getHeavyHitterStats();
+        this.pipeline = runtime.getPipeline();
+
+        this.executor = runtime.getWorkers();
+
+        // Without an executor of its own, the server calls dispatch() on its
+        // accepting thread, which only hands the request over to the pool
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/api/tickets", exchange -> dispatch(exchange, this::handleTickets));
+        server.createContext("/api/validations", exchange -> dispatch(exchange, this::handleValidations));
+        server.createContext("/api/personnes/", exchange -> dispatch(exchange, this::handlePersonnes));
+        server.createContext("/api/reclamations", exchange -> dispatch(exchange, this::handleReclamations));
+        server.createContext("/api/sync/", exchange -> dispatch(exchange, this::handleSync));
+        server.createContext("/api/stats/", exchange -> dispatch(exchange, this::handleStats));
+    }
+
+    public void start() {
+        server.start();
+        LOGGER.info("HTTP API listening on port " + getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        // The worker pool belongs to the runtime, which shuts it down
+        server.stop(1);
+        LOGGER.info("HTTP API stopped");
+    }
+
+    private interface Handler {
+
+        Response handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * A request body over MAX_BODY_BYTES, answered with 413
+     */
+    private static class BodyTooLargeException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        BodyTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Response {
+
+        final int status;
+        final JsonElement body;
+
+        Response(int status, JsonElement body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A checked sale request, not yet published
+     */
+    private static class Sale {
+
+        final Personne personne;
+        final ModeDePaiement mode;
+        final boolean carte;
+
+        Sale(Personne personne, ModeDePaiement mode, boolean carte) {
+            this.personne = personne;
+            this.mode = mode;
+            this.carte = carte;
+        }
+    }
+
+    /**
+     * Hands a request over to the worker pool. When the pool is saturated the
+     * request is answered with 503 right away rather than run on the accepting
+     * thread: handlers may wait for the pipeline, and every other connection
+     * would wait with them.
+     */
+    private void dispatch(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            executor.execute(() -> {
+                try {
+                    handle(exchange, handler);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Error answering " + exchange.getRequestURI(), e);
+                    exchange.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            send(exchange, error(503, "Serveur saturé, réessayez plus tard"));
+        }
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        Response response;
+        try {
+            response = handler.handle(exchange);
+        } catch (BodyTooLargeException e) {
+            response = error(413, e.getMessage());
+        } catch (UnsupportedOperationException e) {
+            response = error(405, e.getMessage());
+        } catch (JsonParseException | DateTimeParseException | IllegalArgumentException | IllegalStateException e) {
+            response = error(400, e.getMessage());
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Error handling " + exchange.getRequestURI(), e);
+            response = error(500, "Erreur interne");
+        }
+        send(exchange, response);
+    }
+
+    private void send(HttpExchange exchange, Response response) throws IOException {
+        byte[] bytes = response.body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        // A fixed length keeps the connection reusable (keep-alive)
+        exchange.sendResponseHeaders(response.status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private Response handleTickets(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "POST");
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/api/tickets")) {
+            return await(publishSale(parseSale(readBody(exchange).getAsJsonObject())));
+        }
+        if (path.equals("/api/tickets/batch")) {
+            // Every sale is checked before any is published, so that a 400
+            // sells nothing and the kiosk can safely retry the whole batch
+            List<Sale> sales = new ArrayList<>();
+            for (JsonElement element : readBody(exchange).getAsJsonArray()) {
+                sales.add(parseSale(element.getAsJsonObject()));
+            }
+            List<CompletableFuture<Response>> results = new ArrayList<>();
+            for (Sale sale : sales) {
+                results.add(publishSale(sale));
+            }
+            return completeAll(results);
+        }
+        if (path.equals("/api/tickets/verify")) {
+            // Pure CPU check, apart from the used-ticket set
+            String token = field(readBody(exchange).getAsJsonObject(), "token");
+            TicketTokenService.Verification verification = ticketTokenService.verify(token);
+            JsonObject body = new JsonObject();
+            body.addProperty("status", verification.name());
+            if (verification != TicketTokenService.Verification.MALFORMED
+                    && verification != TicketTokenService.Verification.INVALID_SIGNATURE) {
+                body.addProperty("titreId", TicketTokenService.titreIdOf(token));
+            }
+            return new Response(200, body);
+        }
+        if (path.equals("/api/tickets/renew")) {
+            int titreId = Integer.parseInt(field(readBody(exchange).getAsJsonObject(), "titreId"));
+            TitreTransport titre = titreTransportService.getTitreById(titreId);
+            if (!(titre instanceof CartePersonnelle)) {
+                return error(404, "Carte introuvable : " + titreId);
+            }
+            titreTransportService.renewCarte((CartePersonnelle) titre);
+            return new Response(200, toJson(titre));
+        }
+        return error(404, "Ressource introuvable");
+    }
+
+    private Response handleValidations(HttpExchange exchange) throws IOException {
+        requireMethod(exchange, "POST");
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/api/validations")) {
+            return await(publishValidation(parseTitreId(readBody(exchange).getAsJsonObject())));
+        }
+        if (path.equals("/api/validations/batch")) {
+            // As for sales, a malformed item rejects the batch before any use
+            List<Integer> titreIds = new ArrayList<>();
+            for (JsonElement element : readBody(exchange).getAsJsonArray()) {
+                titreIds.add(parseTitreId(element.getAsJsonObject()));
+            }
+            List<CompletableFuture<Response>> results = new ArrayList<>();
+            for (int titreId : titreIds) {
+                results.add(publishValidation(titreId));
+            }
+            return completeAll(results);
+        }
+        return error(404, "Ressource introuvable");
+    }
+
+    private Response handlePersonnes(HttpExchange exchange) {
+        requireMethod(exchange, "GET");
+        String id = exchange.getRequestURI().getPath().substring("/api/personnes/".length());
+        Personne personne = personneService.getPersonneById(UUID.fromString(id));
+        return personne != null ? new Response(200, toJson(personne)) : error(404, "Personne introuvable : " + id);
+    }
+
+    private Response handleReclamations(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/api/reclamations") && "GET".equals(exchange.getRequestMethod())) {
+            String query = exchange.getRequestURI().getQuery();
+            if (query == null || !query.startsWith("personneId=")) {
+                return error(400, "Paramètre personneId manquant");
+            }
+            UUID personneId = UUID.fromString(query.substring("personneId=".length()));
+            JsonArray array = new JsonArray();
+            for (Reclamation reclamation : reclamationService.getReclamationsForPerson(personneId)) {
+                array.add(toJson(reclamation));
+            }
+            return new Response(200, array);
+        }
+        requireMethod(exchange, "POST");
+        if (path.equals("/api/reclamations")) {
+            return createReclamation(readBody(exchange).getAsJsonObject());
+        }
+        if (path.equals("/api/reclamations/batch")) {
+            // Reclamations of unknown personnes are answered with 404, the
+            // others are filed together and the file is written once
+            List<Reclamation> created = new ArrayList<>();
+            List<Response> responses = new ArrayList<>();
+            for (JsonElement element : readBody(exchange).getAsJsonArray()) {
+                Reclamation reclamation = newReclamation(element.getAsJsonObject());
+                if (reclamation != null) {
+                    created.add(reclamation);
+                }
+                responses.add(reclamation != null ? new Response(201, toJson(reclamation))
+                        : error(404, "Personne introuvable"));
+            }
+            reclamationService.createReclamations(created);
+            JsonArray array = new JsonArray();
+            for (Response response : responses) {
+                array.add(withStatus(response));
+            }
+            return new Response(200, array);
+        }
+        if (path.equals("/api/reclamations/claim")) {
+            Reclamation reclamation = reclamationWorkQueue.claimNext(field(readBody(exchange).getAsJsonObject(), "agent"));
+            if (reclamation == null) {
+                return error(404, "Aucune réclamation en attente");
+            }
+            JsonObject body = toJson(reclamation);
+            body.addProperty("escalated", reclamationWorkQueue.isEscalated(reclamation.getId()));
+            return new Response(200, body);
+        }
+        if (path.equals("/api/reclamations/process")) {
+            JsonObject request = readBody(exchange).getAsJsonObject();
+            if (!request.has("ids") || !request.get("ids").isJsonArray()) {
+                throw new IllegalArgumentException("Champ ids manquant");
+            }
+            List<UUID> ids = new ArrayList<>();
+            for (JsonElement element : request.getAsJsonArray("ids")) {
+                ids.add(UUID.fromString(element.getAsString()));
+            }
+            ReclamationStatus status = ReclamationStatus.valueOf(field(request, "status"));
+            String reponse = request.has("reponse") ? request.get("reponse").getAsString() : null;
+            JsonObject body = new JsonObject();
+            body.addProperty("processed", reclamationService.processReclamations(ids, status, reponse));
+            return new Response(200, body);
+        }
+        if (path.equals("/api/reclamations/release")) {
+            String id = field(readBody(exchange).getAsJsonObject(), "reclamationId");
+            return reclamationWorkQueue.release(UUID.fromString(id))
+                    ? new Response(200, new JsonObject())
+                    : error(409, "Réclamation non attribuée : " + id);
+        }
+        return error(404, "Ressource introuvable");
+    }
+
+    private Response handleSync(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (path.equals("/api/sync/delta")) {
+            requireMethod(exchange, "GET");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            long since = query.containsKey("since") ? Long.parseLong(query.get("since")) : -1;
+            GateSyncService.Delta delta = gateSyncService.pull(query.get("epoch"), since);
+            JsonObject body = new JsonObject();
+            body.addProperty("epoch", delta.getEpoch());
+            body.addProperty("sequence", delta.getSequence());
+            body.addProperty("full", delta.isFull());
+            body.add("valid", toJsonArray(delta.getValidTicketIds()));
+            body.add("used", toJsonArray(delta.getUsedTicketIds()));
+            return new Response(200, body);
+        }
+        if (path.equals("/api/sync/usage")) {
+            requireMethod(exchange, "POST");
+            List<GateSyncService.UsageEvent> events = new ArrayList<>();
+            for (JsonElement element : readBody(exchange).getAsJsonArray()) {
+                JsonObject item = element.getAsJsonObject();
+                events.add(new GateSyncService.UsageEvent(field(item, "idempotencyKey"), field(item, "gateId"),
+                        Integer.parseInt(field(item, "titreId")), Long.parseLong(field(item, "usedAt"))));
+            }
+            JsonArray array = new JsonArray();
+            for (GateSyncService.UsageResult result : gateSyncService.merge(events)) {
+                JsonObject item = new JsonObject();
+                item.addProperty("idempotencyKey", result.getIdempotencyKey());
+                item.addProperty("status", result.getStatus().name());
+                array.add(item);
+            }
+            return new Response(200, array);
+        }
+        return error(404, "Ressource introuvable");
+    }
+
+    private Response handleStats(HttpExchange exchange) {
+        requireMethod(exchange, "GET");
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        if (path.equals("/api/stats/revenue")) {
+            LocalDate day = query.containsKey("day") ? LocalDate.parse(query.get("day")) : DayClock.getDefault().todayDate();
+            JsonObject body = new JsonObject();
+            body.addProperty("day", day.toString());
+            body.addProperty("revenue", revenueRollup.getRevenue(day));
+            body.addProperty("count", revenueRollup.getCount(day, null, null, null));
+            JsonObject byKind = new JsonObject();
+            for (RevenueRollup.Kind kind : RevenueRollup.Kind.values()) {
+                byKind.addProperty(kind.name(), revenueRollup.getRevenue(day, kind, null, null));
+            }
+            body.add("byKind", byKind);
+            JsonObject byTypeCarte = new JsonObject();
+            for (TypeCarte typeCarte : TypeCarte.values()) {
+                byTypeCarte.addProperty(typeCarte.name(), revenueRollup.getRevenue(day, null, typeCarte, null));
+            }
+            body.add("byTypeCarte", byTypeCarte);
+            JsonObject byMode = new JsonObject();
+            for (ModeDePaiement mode : ModeDePaiement.values()) {
+                byMode.addProperty(mode.name(), revenueRollup.getRevenue(day, null, null, mode));
+            }
+            body.add("byModeDePaiement", byMode);
+            return new Response(200, body);
+        }
+        if (path.equals("/api/stats/riders")) {
+            LocalDate day = query.containsKey("day") ? LocalDate.parse(query.get("day")) : DayClock.getDefault().todayDate();
+            JsonObject body = new JsonObject();
+            body.addProperty("day", day.toString());
+            body.addProperty("distinctDay", distinctRiderStats.estimate(day));
+            body.addProperty("distinctWeek", distinctRiderStats.estimateWeek(day));
+            body.addProperty("distinctMonth", distinctRiderStats.estimateMonth(YearMonth.from(day)));
+            return new Response(200, body);
+        }
+        if (path.equals("/api/stats/rates")) {
+            RingTimeSeries.Resolution resolution = RingTimeSeries.Resolution.valueOf(
+                    query.getOrDefault("resolution", "minute").toUpperCase());
+            int buckets = query.containsKey("buckets") ? Integer.parseInt(query.get("buckets")) : 60;
+            long now = DayClock.getDefault().getClock().millis();
+            JsonObject body = new JsonObject();
+            body.addProperty("resolution", resolution.name());
+            body.addProperty("bucketMillis", resolution.getMillis());
+            body.addProperty("end", now - Math.floorMod(now, resolution.getMillis()) + resolution.getMillis());
+            body.add("ticketSales", toJson(titreTransportService.getTicketSalesSeries().snapshot(resolution, buckets, now)));
+            body.add("validations", toJson(titreTransportService.getValidationSeries().snapshot(resolution, buckets, now)));
+            return new Response(200, body);
+        }
+        if (path.equals("/api/stats/top")) {
+            int k = query.containsKey("k") ? Integer.parseInt(query.get("k")) : 10;
+            JsonObject body = new JsonObject();
+            body.add("complainants", toJson(heavyHitterStats.getTopComplainants(k)));
+            body.add("ticketBuyers", toJson(heavyHitterStats.getTopTicketBuyers(k)));
+            return new Response(200, body);
+        }
+        if (path.equals("/api/stats/revenue/monthly")) {
+            JsonObject body = new JsonObject();
+            for (Map.Entry<YearMonth, Long> month : titreColumnStore.getRevenueByMonth().entrySet()) {
+                body.addProperty(month.getKey().toString(), month.getValue());
+            }
+            return new Response(200, body);
+        }
+        if (path.equals("/api/stats/cartes/age-bands")) {
+            int width = query.containsKey("width") ? Integer.parseInt(query.get("width")) : 10;
+            JsonObject body = new JsonObject();
+            for (Map.Entry<Integer, Map<TypeCarte, Long>> band : titreColumnStore.getCarteMixByAgeBand(width).entrySet()) {
+                JsonObject mix = new JsonObject();
+                for (Map.Entry<TypeCarte, Long> type : band.getValue().entrySet()) {
+                    mix.addProperty(type.getKey().name(), type.getValue());
+                }
+                body.add(band.getKey() + "-" + (band.getKey() + width - 1), mix);
+            }
+            return new Response(200, body);
+        }
+        if (path.equals("/api/stats/reclamations/latency")) {
+            LocalDate from = query.containsKey("from") ? LocalDate.parse(query.get("from")) : null;
+            LocalDate to = query.containsKey("to") ? LocalDate.parse(query.get("to")) : from;
+            JsonObject body = new JsonObject();
+            body.add("ALL", toJson(latency(from, to, null, null)));
+            for (ReclamationType type : ReclamationType.values()) {
+                JsonObject byStatus = new JsonObject();
+                for (ReclamationStatus status : ReclamationStatus.values()) {
+                    if (status != ReclamationStatus.EN_COURS) {
+                        byStatus.add(status.name(), toJson(latency(from, to, type, status)));
+                    }
+                }
+                body.add(type.name(), byStatus);
+            }
+            return new Response(200, body);
+        }
+        if (path.equals("/api/stats/reclamations")) {
+            LocalDate day = query.containsKey("day") ? LocalDate.parse(query.get("day")) : DayClock.getDefault().todayDate();
+            JsonObject body = new JsonObject();
+            body.addProperty("backlog", reclamationStats.getBacklog());
+            JsonObject byStatus = new JsonObject();
+            JsonObject filed = new JsonObject();
+            for (ReclamationStatus status : ReclamationStatus.values()) {
+                byStatus.addProperty(status.name(), reclamationStats.getCount(status, null));
+                JsonObject byType = new JsonObject();
+                for (ReclamationType type : ReclamationType.values()) {
+                    byType.addProperty(type.name(), reclamationStats.getCount(day, status, type));
+                }
+                filed.add(status.name(), byType);
+            }
+            body.add("byStatus", byStatus);
+            JsonObject byType = new JsonObject();
+            for (ReclamationType type : ReclamationType.values()) {
+                byType.addProperty(type.name(), reclamationStats.getCount(null, type));
+            }
+            body.add("byType", byType);
+            body.addProperty("day", day.toString());
+            body.add("filedOnDay", filed);
+            return new Response(200, body);
+        }
+        return error(404, "Ressource introuvable");
+    }
+
+    private LatencyHistogram latency(LocalDate from, LocalDate to, ReclamationType type, ReclamationStatus status) {
+        return from == null
+                ? reclamationLatencyStats.getHistogram(type, status)
+                : reclamationLatencyStats.getHistogram(from, to, type, status);
+    }
+
+    private static JsonArray toJson(long[] values) {
+        JsonArray array = new JsonArray();
+        for (long value : values) {
+            array.add(value);
+        }
+        return array;
+    }
+
+    private static JsonArray toJson(List<SpaceSavingSketch.Entry<UUID>> entries) {
+        JsonArray array = new JsonArray();
+        for (SpaceSavingSketch.Entry<UUID> entry : entries) {
+            JsonObject item = new JsonObject();
+            item.addProperty("personneId", entry.getKey().toString());
+            item.addProperty("count", entry.getCount());
+            item.addProperty("error", entry.getError());
+            array.add(item);
+        }
+        return array;
+    }
+
+    static JsonObject toJson(LatencyHistogram histogram) {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", histogram.getTotalCount());
+        json.addProperty("p50Seconds", histogram.getValueAtPercentile(50));
+        json.addProperty("p90Seconds", histogram.getValueAtPercentile(90));
+        json.addProperty("p99Seconds", histogram.getValueAtPercentile(99));
+        json.addProperty("maxSeconds", histogram.getMaxValue());
+        return json;
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static JsonArray toJsonArray(int[] values) {
+        JsonArray array = new JsonArray();
+        for (int value : values) {
+            array.add(value);
+        }
+        return array;
+    }
+
+    private Response createReclamation(JsonObject request) {
+        Personne personne = findPersonne(request);
+        if (personne == null) {
+            return error(404, "Personne introuvable");
+        }
+        ReclamationType type = ReclamationType.valueOf(field(request, "type"));
+        Reclamation reclamation = reclamationService.createReclamation(personne,
+                field(request, "description"), type);
+        return new Response(201, toJson(reclamation));
+    }
+
+    /**
+     * Builds a reclamation to file in a batch
+     *
+     * @return null if the personne is unknown
+     */
+    private Reclamation newReclamation(JsonObject request) {
+        Personne personne = findPersonne(request);
+        if (personne == null) {
+            return null;
+        }
+        ReclamationType type = ReclamationType.valueOf(field(request, "type"));
+        return new Reclamation(personne, field(request, "description"), type);
+    }
+
+    /**
+     * Reads a sale request, throwing on malformed fields; an unknown personne
+     * is left for {@link #publishSale(Sale)} to answer with 404
+     */
+    private Sale parseSale(JsonObject request) {
+        Personne personne = findPersonne(request);
+        ModeDePaiement mode = ModeDePaiement.valueOf(field(request, "modeDePaiement"));
+        boolean carte = request.has("type") && "CartePersonnelle".equals(request.get("type").getAsString());
+        return new Sale(personne, mode, carte);
+    }
+
+    private CompletableFuture<Response> publishSale(Sale sale) {
+        if (sale.personne == null) {
+            return CompletableFuture.completedFuture(error(404, "Personne introuvable"));
+        }
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        if (!pipeline.tryPublishSale(sale.personne, sale.mode, sale.carte,
+                event -> result.complete(toSaleResponse(event)))) {
+            return CompletableFuture.completedFuture(error(429, "File des ventes saturée, réessayez plus tard"));
+        }
+        return result;
+    }
+
+    private static int parseTitreId(JsonObject request) {
+        return Integer.parseInt(field(request, "titreId"));
+    }
+
+    private CompletableFuture<Response> publishValidation(int titreId) {
+        if (titreTransportService.getTitreById(titreId) == null) {
+            return CompletableFuture.completedFuture(error(404, "Titre introuvable : " + titreId));
+        }
+        CompletableFuture<Response> result = new CompletableFuture<>();
+        if (!pipeline.tryPublishValidation(titreId, event -> result.complete(toResponse(event, 200)))) {
+            return CompletableFuture.completedFuture(error(429, "File des validations saturée, réessayez plus tard"));
+        }
+        return result;
+    }
+
+    /**
+     * Builds the sale response, with the signed token of the titre
+     */
+    private Response toSaleResponse(TitreEvent event) {
+        Response response = toResponse(event, 201);
+        if (event.isSuccess()) {
+            response.body.getAsJsonObject().addProperty("token", ticketTokenService.issue(event.getTitre()));
+        }
+        return response;
+    }
+
+    /**
+     * Builds the response while the pipeline slot is still valid
+     */
+    private Response toResponse(TitreEvent event, int successStatus) {
+        if (event.isSuccess()) {
+            return new Response(successStatus, toJson(event.getTitre()));
+        }
+        return error(422, event.getError());
+    }
+
+    private Response completeAll(List<CompletableFuture<Response>> futures) {
+        JsonArray array = new JsonArray();
+        for (CompletableFuture<Response> future : futures) {
+            array.add(withStatus(await(future)));
+        }
+        return new Response(200, array);
+    }
+
+    private Response await(CompletableFuture<Response> future) {
+        try {
+            return future.get(PIPELINE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            return error(503, "Délai de traitement dépassé");
+        } catch (ExecutionException e) {
+            return error(500, e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return error(503, "Traitement interrompu");
+        }
+    }
+
+    private static JsonObject withStatus(Response response) {
+        JsonObject item = new JsonObject();
+        item.addProperty("status", response.status);
+        item.add("body", response.body);
+        return item;
+    }
+
+    private Personne findPersonne(JsonObject request) {
+        return personneService.getPersonneById(UUID.fromString(field(request, "personneId")));
+    }
+
+    private static String field(JsonObject request, String name) {
+        if (!request.has(name) || request.get(name).isJsonNull()) {
+            throw new IllegalArgumentException("Champ " + name + " manquant");
+        }
+        return request.get(name).getAsString();
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) {
+        if (!method.equals(exchange.getRequestMethod())) {
+            throw new UnsupportedOperationException("Méthode non supportée : " + exchange.getRequestMethod());
+        }
+    }
+
+    /**
+     * Reads and parses the request body, refusing bodies over MAX_BODY_BYTES
+     */
+    private static JsonElement readBody(HttpExchange exchange) throws IOException {
+        try (InputStream is = exchange.getRequestBody()) {
+            byte[] body = is.readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) {
+                throw new BodyTooLargeException("Requête trop volumineuse (plus de " + MAX_BODY_BYTES + " octets)");
+            }
+            return JsonParser.parseString(new String(body, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static Response error(int status, String message) {
+        JsonObject body = new JsonObject();
+        body.addProperty("error", message);
+        return new Response(status, body);
+    }
+
+    static JsonObject toJson(TitreTransport titre) {
+        JsonObject json = new JsonObject();
+        json.addProperty("currentId", titre.getCurrentId());
+        json.addProperty("type", titre instanceof CartePersonnelle ? "CartePersonnelle" : "Ticket");
+        json.addProperty("personneId", titre.getPersonneId().toString());
+        json.addProperty("dateAchat", titre.getDateAchat().toString());
+        json.addProperty("prix", titre.getPrixValue());
+        if (titre.getModeDePaiement() != null) {
+            json.addProperty("modeDePaiement", titre.getModeDePaiement().name());
+        }
+        json.addProperty("valide", titre.isValid());
+        if (titre instanceof Ticket) {
+            json.addProperty("used", ((Ticket) titre).isUsed());
+        } else if (titre instanceof CartePersonnelle) {
+            CartePersonnelle carte = (CartePersonnelle) titre;
+            if (carte.getType() != null) {
+                json.addProperty("typeCarte", carte.getType().name());
+            }
+            json.addProperty("dateExpiration", carte.getDateExpiration().toString());
+        }
+        return json;
+    }
+
+    static JsonObject toJson(Personne personne) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", personne.getId().toString());
+        json.addProperty("type", personne instanceof Employe ? "Employe" : "Usager");
+        json.addProperty("name", personne.getName());
+        json.addProperty("familyName", personne.getFamilyName());
+        json.addProperty("birthDate", personne.getBirthDate().toString());
+        json.addProperty("hasHandicap", personne.hasHandicap());
+        if (personne instanceof Employe) {
+            Employe employe = (Employe) personne;
+            json.addProperty("matricule", employe.getMatricule());
+            json.addProperty("fonction", employe.getFonction() != null ? employe.getFonction().name() : null);
+        }
+        return json;
+    }
+
+    static JsonObject toJson(Reclamation reclamation) {
+        JsonObject json = new JsonObject();
+        json.addProperty("id", reclamation.getId().toString());
+        json.addProperty("personneId", reclamation.getPersonneId().toString());
+        json.addProperty("description", reclamation.getDescription());
+        json.addProperty("type", reclamation.getType() != null ? reclamation.getType().name() : null);
+        json.addProperty("etat", reclamation.getEtat() != null ? reclamation.getEtat().name() : null);
+        json.addProperty("dateReclamation", String.valueOf(reclamation.getDateReclamation()));
+        if (reclamation.getDateTraitement() != null) {
+            json.addProperty("dateTraitement", reclamation.getDateTraitement().toString());
+        }
+        json.addProperty("reponse", reclamation.getReponse());
+        return json;
+    }
+}
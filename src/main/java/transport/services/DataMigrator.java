@@ -0,0 +1,410 @@
+package transport.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import transport.core.CartePersonnelle;
+import transport.core.Fonction;
+import transport.core.ReclamationStatus;
+import transport.core.ReclamationType;
+
+/**
+ * Versioned data files and the migrations between their versions.
+ * <p>
+ * Data files are written as {@code {"schemaVersion": N, "records": [...]}};
+ * files written before versions existed are a bare array and count as
+ * version 1. Every version comes with a migration per store that upgrades one
+ * record of the previous version, so files are always read record by record:
+ * the services load old files by migrating each record in memory as it is
+ * read, and {@link #migrate(File, int)} rewrites old files on disk through a
+ * temporary file, one thread per file, keeping the original next to it.
+ * Neither ever holds more than one record of a file as a JSON tree, and both
+ * log and skip a record that cannot be upgraded rather than give up on the
+ * file.
+ */
+public final class DataMigrator {
+
+    /**
+     * The version written by this code, reached by every store's migrations
+     */
+    public static final int CURRENT_VERSION = 2;
+
+    private static final Logger LOGGER = Logger.getLogger(DataMigrator.class.getName());
+    private static final String VERSION_FIELD = "schemaVersion";
+    private static final String RECORDS_FIELD = "records";
+    // Formats the JSON trees of records the way the services always have
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    /**
+     * The data files and the migrations of their records. The migration at
+     * index i upgrades a record from version i + 1 to version i + 2.
+     */
+    public enum Store {
+        PERSONNES("personnes.json", Collections.singletonList(DataMigrator::personneV2)),
+        TITRES("titres.json", Collections.singletonList(DataMigrator::titreV2)),
+        RECLAMATIONS("reclamations.json", Collections.singletonList(DataMigrator::reclamationV2));
+
+        private final String fileName;
+        private final List<UnaryOperator<JsonObject>> migrations;
+
+        Store(String fileName, List<UnaryOperator<JsonObject>> migrations) {
+            this.fileName = fileName;
+            this.migrations = Collections.unmodifiableList(new ArrayList<>(migrations));
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+    }
+
+    /**
+     * Outcome of the migration of one file
+     */
+    public static final class FileMigration {
+
+        private final int recordCount;
+        private final int skippedCount;
+
+        FileMigration(int recordCount, int skippedCount) {
+            this.recordCount = recordCount;
+            this.skippedCount = skippedCount;
+        }
+
+        /**
+         * Number of records rewritten at the current version
+         */
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Number of records that could not be upgraded, left out of the
+         * migrated file but still in the kept original
+         */
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        @Override
+        public String toString() {
+            return recordCount + " records" + (skippedCount > 0 ? ", " + skippedCount + " skipped" : "");
+        }
+    }
+
+    private DataMigrator() {
+    }
+
+    /**
+     * Reads the records of a data file of any version, each one upgraded to
+     * the current version before it is passed on. A record that cannot be
+     * upgraded, or that the consumer rejects with a runtime exception, is
+     * logged and skipped.
+     *
+     * @return The version of the file
+     * @throws JsonParseException if the file is not a data file or was written
+     * by a newer version
+     */
+    static int readFile(File file, Store store, Consumer<JsonElement> consumer) throws IOException {
+        try (JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))) {
+            int version = openRecords(reader, file);
+            int index = 0;
+            while (reader.hasNext()) {
+                JsonElement record = JsonParser.parseReader(reader);
+                try {
+                    consumer.accept(upgrade(record, store, version));
+                } catch (RuntimeException e) {
+                    // One bad record must not keep the others from loading
+                    LOGGER.warning("Skipped record " + index + " of " + file + ": " + e);
+                }
+                index++;
+            }
+            if (version < CURRENT_VERSION) {
+                LOGGER.info("Read " + file + " as version " + version + ", it will be saved as version "
+                        + CURRENT_VERSION);
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Writes a data file of the current version, one record at a time
+     */
+    static <T> void writeFile(File file, Iterable<T> records, Function<T, JsonElement> toJson) throws IOException {
+        try (JsonWriter writer = GSON.newJsonWriter(newWriter(file))) {
+            writer.beginObject();
+            writer.name(VERSION_FIELD).value(CURRENT_VERSION);
+            writer.name(RECORDS_FIELD).beginArray();
+            for (T record : records) {
+                GSON.toJson(toJson.apply(record), writer);
+            }
+            writer.endArray();
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Upgrades the data files of a directory to the current version, in
+     * parallel. Each file is streamed to a temporary file which then replaces
+     * it; the original is kept with its version as suffix, e.g.
+     * {@code titres.json.v1}. Files already current or missing are left alone.
+     * Records that cannot be upgraded are logged and left out, as when the
+     * services read the file.
+     *
+     * @param workers The number of files migrated at once
+     * @return The records rewritten and skipped, per migrated file name
+     * @throws IOException if a file cannot be read, parsed or written; the
+     * files migrated by then stay migrated
+     */
+    public static Map<String, FileMigration> migrate(File directory, int workers) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, Store.values().length)));
+        try {
+            Map<Store, Future<FileMigration>> tasks = new LinkedHashMap<>();
+            for (Store store : Store.values()) {
+                File file = new File(directory, store.fileName);
+                if (file.isFile()) {
+                    tasks.put(store, executor.submit(() -> migrateFile(file, store)));
+                }
+            }
+            Map<String, FileMigration> migrated = new LinkedHashMap<>();
+            List<String> failures = new ArrayList<>();
+            Throwable cause = null;
+            for (Map.Entry<Store, Future<FileMigration>> task : tasks.entrySet()) {
+                try {
+                    FileMigration migration = task.getValue().get();
+                    if (migration != null) {
+                        migrated.put(task.getKey().fileName, migration);
+                    }
+                } catch (ExecutionException e) {
+                    // Let the other files finish before reporting
+                    failures.add(task.getKey().fileName + ": " + e.getCause().getMessage());
+                    cause = e.getCause();
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new IOException("Migration failed for " + failures, cause);
+            }
+            return migrated;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Migration interrupted", e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return The records rewritten and skipped, or null if the file is current
+     */
+    private static FileMigration migrateFile(File file, Store store) throws IOException {
+        File temporary = new File(file.getPath() + ".migrating");
+        int version;
+        int count = 0;
+        int skipped = 0;
+        try (JsonReader reader = new JsonReader(new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))) {
+            version = openRecords(reader, file);
+            if (version == CURRENT_VERSION) {
+                return null;
+            }
+            try (JsonWriter writer = GSON.newJsonWriter(newWriter(temporary))) {
+                writer.beginObject();
+                writer.name(VERSION_FIELD).value(CURRENT_VERSION);
+                writer.name(RECORDS_FIELD).beginArray();
+                int index = 0;
+                while (reader.hasNext()) {
+                    JsonElement record = JsonParser.parseReader(reader);
+                    JsonElement upgraded;
+                    try {
+                        upgraded = upgrade(record, store, version);
+                    } catch (RuntimeException e) {
+                        // Same rule as readFile; the original keeps the record
+                        LOGGER.warning("Skipped record " + index + " of " + file + ": " + e);
+                        skipped++;
+                        index++;
+                        continue;
+                    }
+                    GSON.toJson(upgraded, writer);
+                    count++;
+                    index++;
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary.toPath());
+            throw e;
+        }
+        // The original stays in place until the migrated file replaces it
+        File backup = new File(file.getPath() + ".v" + version);
+        Files.copy(file.toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Migrated " + count + " records of " + file + " from version " + version + " to "
+                + CURRENT_VERSION + ", original kept as " + backup.getName());
+        if (skipped > 0) {
+            LOGGER.warning("Skipped " + skipped + " records of " + file + " that could not be migrated, they are"
+                    + " only in " + backup.getName());
+        }
+        return new FileMigration(count, skipped);
+    }
+
+    /**
+     * Positions the reader on the first record and returns the file version
+     */
+    private static int openRecords(JsonReader reader, File file) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            return 1;
+        }
+        reader.beginObject();
+        // The version comes first, so that records can be migrated as they are read
+        if (!VERSION_FIELD.equals(reader.nextName())) {
+            throw new JsonParseException(file + ": " + VERSION_FIELD + " must be the first field");
+        }
+        int version = reader.nextInt();
+        if (version < 1 || version > CURRENT_VERSION) {
+            throw new JsonParseException(file + ": unsupported " + VERSION_FIELD + " " + version
+                    + ", this version reads up to " + CURRENT_VERSION);
+        }
+        while (!RECORDS_FIELD.equals(reader.nextName())) {
+            reader.skipValue();
+        }
+        reader.beginArray();
+        return version;
+    }
+
+    private static JsonElement upgrade(JsonElement record, Store store, int version) {
+        if (!record.isJsonObject()) {
+            return record;
+        }
+        JsonObject object = record.getAsJsonObject();
+        for (int v = version; v < CURRENT_VERSION; v++) {
+            object = store.migrations.get(v - 1).apply(object);
+        }
+        return object;
+    }
+
+    private static Writer newWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Version 2 of personnes: employees get an empty matricule rather than
+     * none and a known fonction, and hasHandicap is always present
+     */
+    private static JsonObject personneV2(JsonObject record) {
+        JsonObject data = record.has("data") && record.get("data").isJsonObject()
+                ? record.getAsJsonObject("data") : null;
+        if (data == null) {
+            return record;
+        }
+        if (!data.has("hasHandicap") || data.get("hasHandicap").isJsonNull()) {
+            data.addProperty("hasHandicap", false);
+        }
+        if (isString(record.get("type"), "Employe")) {
+            if (!data.has("matricule") || data.get("matricule").isJsonNull()) {
+                data.addProperty("matricule", "");
+            }
+            JsonElement fonction = data.get("fonction");
+            if (fonction != null && !fonction.isJsonNull() && !isFonction(fonction.getAsString())) {
+                data.addProperty("fonction", Fonction.ADMINISTRATIF.name());
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Version 2 of titres: prices are numbers rather than strings, and cartes
+     * carry their expiration date
+     */
+    private static JsonObject titreV2(JsonObject record) {
+        JsonObject data = record.has("data") && record.get("data").isJsonObject()
+                ? record.getAsJsonObject("data") : null;
+        if (data == null) {
+            return record;
+        }
+        JsonElement prix = data.get("prix");
+        if (prix != null && prix.isJsonPrimitive() && prix.getAsJsonPrimitive().isString()) {
+            data.addProperty("prix", Integer.parseInt(prix.getAsString().trim()));
+        }
+        if (isString(record.get("type"), "CartePersonnelle") && !data.has("dateExpiration")
+                && data.has("dateAchat")) {
+            LocalDateTime dateAchat = LocalDateTime.parse(data.get("dateAchat").getAsString());
+            data.addProperty("dateExpiration", CartePersonnelle.dateExpirationParDefaut(dateAchat).toString());
+        }
+        return record;
+    }
+
+    /**
+     * Version 2 of reclamations: status and type are constant names, not the
+     * labels shown to users
+     */
+    private static JsonObject reclamationV2(JsonObject record) {
+        JsonElement etat = record.get("etat");
+        if (etat != null && etat.isJsonPrimitive()) {
+            for (ReclamationStatus status : ReclamationStatus.values()) {
+                if (status.getStatus().equalsIgnoreCase(etat.getAsString())) {
+                    record.add("etat", new JsonPrimitive(status.name()));
+                }
+            }
+        }
+        JsonElement type = record.get("type");
+        if (type != null && type.isJsonPrimitive()) {
+            for (ReclamationType reclamationType : ReclamationType.values()) {
+                if (reclamationType.getLibelle().equalsIgnoreCase(type.getAsString())) {
+                    record.add("type", new JsonPrimitive(reclamationType.name()));
+                }
+            }
+        }
+        return record;
+    }
+
+    private static boolean isString(JsonElement element, String value) {
+        return element != null && element.isJsonPrimitive() && value.equals(element.getAsString());
+    }
+
+    private static boolean isFonction(String value) {
+        for (Fonction fonction : Fonction.values()) {
+            if (fonction.name().equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,81 @@
+package transport.services;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import transport.core.CartePersonnelle;
+import transport.core.TitreTransport;
+
+/**
+ * Approximate number of distinct personnes who bought or used a titre, per
+ * day. Each day has a 4 KB HyperLogLog sketch fed as titres are sold (on their
+ * purchase day) and as cartes are validated at a gate or by token (on the day
+ * of use); weeks, months or any range of days are answered by merging the
+ * daily sketches.
+ */
+public class DistinctRiderStats {
+
+    private final Map<Long, HyperLogLog> days = new ConcurrentHashMap<>();
+
+    public DistinctRiderStats(TitreTransportService titreService) {
+        titreService.addListener(new TitreTransportListener() {
+            @Override
+            public void onIssued(TitreTransport titre) {
+                sketch(titre.getDateAchat().toLocalDate().toEpochDay()).add(titre.getPersonneId());
+            }
+
+            @Override
+            public void onCarteValidated(CartePersonnelle carte, LocalDate day) {
+                // Tickets need no such count: they are only used on their
+                // purchase day, where their buyer is already counted
+                sketch(day.toEpochDay()).add(carte.getPersonneId());
+            }
+        }, true);
+    }
+
+    public long estimate(LocalDate day) {
+        HyperLogLog sketch = days.get(day.toEpochDay());
+        return sketch != null ? sketch.estimate() : 0;
+    }
+
+    /**
+     * Distinct personnes over the days from {@code from} to {@code to}
+     * included
+     */
+    public long estimate(LocalDate from, LocalDate to) {
+        return merge(from, to).estimate();
+    }
+
+    /**
+     * Distinct personnes over the week (Monday to Sunday) containing the day
+     */
+    public long estimateWeek(LocalDate day) {
+        LocalDate monday = day.with(DayOfWeek.MONDAY);
+        return estimate(monday, monday.plusDays(6));
+    }
+
+    public long estimateMonth(YearMonth month) {
+        return estimate(month.atDay(1), month.atEndOfMonth());
+    }
+
+    /**
+     * Union of the daily sketches of a range, for callers combining ranges
+     */
+    public HyperLogLog merge(LocalDate from, LocalDate to) {
+        HyperLogLog union = new HyperLogLog();
+        for (long day = from.toEpochDay(); day <= to.toEpochDay(); day++) {
+            HyperLogLog sketch = days.get(day);
+            if (sketch != null) {
+                union.merge(sketch);
+            }
+        }
+        return union;
+    }
+
+    private HyperLogLog sketch(long epochDay) {
+        return days.computeIfAbsent(epochDay, day -> new HyperLogLog());
+    }
+}
@@ -0,0 +1,496 @@
+package transport.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import transport.core.DayClock;
+import transport.core.Ticket;
+import transport.core.TitreTransport;
+
+/**
+ * Synchronization protocol for gates validating tickets offline.
+ * <p>
+ * Gates pull a delta of the tickets sold and used since the last sequence
+ * number they saw, and push the tickets they validated while offline as
+ * batches of usage events. Each event carries an idempotency key: keys already
+ * merged are reported as duplicates and never applied twice, even after a
+ * restart. Keys are kept by usage day for {@value #KEY_RETENTION_DAYS} days,
+ * longer than a gate retries a batch; past that a replayed use is only
+ * stopped by the ticket being used already, and answered as a conflict.
+ * Events may also name a carte shown at the gate: it is accepted if it was
+ * valid on the day of use, and only counted as a validation.
+ * Within a batch events are applied by usage time, then gate id, then
+ * key, so when two gates used the same ticket in one batch the earliest usage
+ * wins. Across batches the batch merged first wins, whatever the usage times,
+ * since the time of a use is not kept once merged.
+ * <p>
+ * The keys of a batch, with the ticket and time of each accepted use, are
+ * appended to the key log before the titres are written. If the process stops
+ * between the two, the accepted uses are applied again from the log at the next
+ * start, so a batch is never half merged. Once keys expire the log is rewritten
+ * without them, so neither it nor the time to read it at start grows with the
+ * traffic of past days.
+ */
+public class GateSyncService {
+
+    private static final Logger LOGGER = Logger.getLogger(GateSyncService.class.getName());
+    private static final String DATA_DIRECTORY = "data";
+    private static final String KEYS_FILE = DATA_DIRECTORY + "/gate_sync_keys.log";
+    /**
+     * Number of days, counted back from today, whose idempotency keys are kept
+     */
+    public static final int KEY_RETENTION_DAYS = 7;
+
+    private static final byte SOLD = 0;
+    private static final byte USED = 1;
+
+    public enum Status {
+        ACCEPTED,
+        DUPLICATE,
+        CONFLICT,
+        REJECTED
+    }
+
+    /**
+     * A ticket validated by a gate
+     */
+    public static class UsageEvent {
+
+        private final String idempotencyKey;
+        private final String gateId;
+        private final int titreId;
+        private final long usedAtEpochMilli;
+
+        public UsageEvent(String idempotencyKey, String gateId, int titreId, long usedAtEpochMilli) {
+            this.idempotencyKey = idempotencyKey;
+            this.gateId = gateId;
+            this.titreId = titreId;
+            this.usedAtEpochMilli = usedAtEpochMilli;
+        }
+
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        public String getGateId() {
+            return gateId;
+        }
+
+        public int getTitreId() {
+            return titreId;
+        }
+
+        public long getUsedAtEpochMilli() {
+            return usedAtEpochMilli;
+        }
+    }
+
+    public static class UsageResult {
+
+        private final String idempotencyKey;
+        private final Status status;
+
+        UsageResult(String idempotencyKey, Status status) {
+            this.idempotencyKey = idempotencyKey;
+            this.status = status;
+        }
+
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+    }
+
+    /**
+     * Changes since a sequence number. When the gate's epoch does not match
+     * (the log was reset by a restart) the delta is a full list of the tickets
+     * valid today.
+     */
+    public static class Delta {
+
+        private final String epoch;
+        private final long sequence;
+        private final boolean full;
+        private final int[] validTicketIds;
+        private final int[] usedTicketIds;
+
+        Delta(String epoch, long sequence, boolean full, int[] validTicketIds, int[] usedTicketIds) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.full = full;
+            this.validTicketIds = validTicketIds;
+            this.usedTicketIds = usedTicketIds;
+        }
+
+        public String getEpoch() {
+            return epoch;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public boolean isFull() {
+            return full;
+        }
+
+        public int[] getValidTicketIds() {
+            return validTicketIds;
+        }
+
+        public int[] getUsedTicketIds() {
+            return usedTicketIds;
+        }
+    }
+
+    private final TitreTransportService titreService;
+    private final String epoch = UUID.randomUUID().toString();
+    // Idempotency keys by epoch day of usage, for the days still retained
+    private final NavigableMap<Long, Set<String>> keysByDay = new TreeMap<>();
+
+    // Change log: entry i has sequence number i + 1. It has its own lock since
+    // it is appended to from the titre service's listener.
+    private final Object logLock = new Object();
+    private int[] logIds = new int[1024];
+    private byte[] logKinds = new byte[1024];
+    private int logSize;
+
+    public GateSyncService(TitreTransportService titreService) {
+        this.titreService = titreService;
+        loadKeys();
+        titreService.addListener(new TitreTransportListener() {
+            @Override
+            public void onIssued(TitreTransport titre) {
+                if (titre instanceof Ticket) {
+                    append(titre.getCurrentId(), SOLD);
+                }
+            }
+
+            @Override
+            public void onUsed(Ticket ticket) {
+                append(ticket.getCurrentId(), USED);
+            }
+        });
+    }
+
+    /**
+     * Returns the tickets sold (and still valid) and used since the given
+     * sequence number
+     *
+     * @param gateEpoch The epoch returned with the gate's last delta, or null
+     * @param since The sequence returned with the gate's last delta
+     */
+    public Delta pull(String gateEpoch, long since) {
+        int end;
+        int[] ids;
+        byte[] kinds;
+        synchronized (logLock) {
+            end = logSize;
+            ids = logIds;
+            kinds = logKinds;
+        }
+        if (!epoch.equals(gateEpoch) || since < 0 || since > end) {
+            return fullDelta(end);
+        }
+        int[] valid = new int[end - (int) since];
+        int[] used = new int[end - (int) since];
+        int validCount = 0;
+        int usedCount = 0;
+        for (int i = (int) since; i < end; i++) {
+            if (kinds[i] == USED) {
+                used[usedCount++] = ids[i];
+            } else {
+                TitreTransport titre = titreService.getTitreById(ids[i]);
+                if (titre != null && titre.isValid()) {
+                    valid[validCount++] = ids[i];
+                }
+            }
+        }
+        return new Delta(epoch, end, false, Arrays.copyOf(valid, validCount), Arrays.copyOf(used, usedCount));
+    }
+
+    private Delta fullDelta(long sequence) {
+        int[] valid = titreService.getTicketsValidToday().stream()
+                .mapToInt(TitreTransport::getCurrentId)
+                .toArray();
+        return new Delta(epoch, sequence, true, valid, new int[0]);
+    }
+
+    /**
+     * Merges a batch of offline validations and persists the titres once
+     *
+     * @return One result per event, in the order of the given list
+     */
+    public synchronized List<UsageResult> merge(List<UsageEvent> events) {
+        List<UsageEvent> ordered = new ArrayList<>(events);
+        ordered.sort(Comparator.comparingLong(UsageEvent::getUsedAtEpochMilli)
+                .thenComparing(UsageEvent::getGateId, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(UsageEvent::getIdempotencyKey, Comparator.nullsFirst(Comparator.naturalOrder())));
+
+        long oldest = expireKeys();
+        Map<UsageEvent, Status> statuses = new IdentityHashMap<>();
+        List<UsageEvent> newEvents = new ArrayList<>();
+        boolean changed = false;
+        for (UsageEvent event : ordered) {
+            String key = event.getIdempotencyKey();
+            Status status;
+            if (key == null || key.isEmpty() || key.indexOf('\n') >= 0 || key.indexOf('\t') >= 0) {
+                status = Status.REJECTED;
+            } else if (usageDay(event.getUsedAtEpochMilli()).toEpochDay() < oldest) {
+                // Past the retention window the key would be dropped at once
+                status = applyUse(event.getTitreId(), event.getUsedAtEpochMilli());
+                changed |= status == Status.ACCEPTED;
+            } else if (!keysOf(usageDay(event.getUsedAtEpochMilli())).add(key)) {
+                status = Status.DUPLICATE;
+            } else {
+                status = applyUse(event.getTitreId(), event.getUsedAtEpochMilli());
+                newEvents.add(event);
+                changed |= status == Status.ACCEPTED;
+            }
+            statuses.put(event, status);
+        }
+
+        // The log goes first: a use it records but the titres miss is redone at start
+        saveKeys(newEvents, statuses);
+        if (changed) {
+            titreService.flush();
+        }
+
+        List<UsageResult> results = new ArrayList<>(events.size());
+        for (UsageEvent event : events) {
+            results.add(new UsageResult(event.getIdempotencyKey(), statuses.get(event)));
+        }
+        return results;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    private void append(int titreId, byte kind) {
+        synchronized (logLock) {
+            // Grow into new arrays so that a reader holding the old ones stays consistent
+            if (logSize == logIds.length) {
+                logIds = Arrays.copyOf(logIds, logSize * 2);
+                logKinds = Arrays.copyOf(logKinds, logSize * 2);
+            }
+            logIds[logSize] = titreId;
+            logKinds[logSize] = kind;
+            logSize++;
+        }
+    }
+
+    private Status applyUse(int titreId, long usedAtEpochMilli) {
+        return titreService.applyOfflineUse(titreId, usageDay(usedAtEpochMilli));
+    }
+
+    private static LocalDate usageDay(long usedAtEpochMilli) {
+        return Instant.ofEpochMilli(usedAtEpochMilli).atZone(DayClock.getDefault().getClock().getZone()).toLocalDate();
+    }
+
+    private Set<String> keysOf(LocalDate usageDay) {
+        return keysByDay.computeIfAbsent(usageDay.toEpochDay(), day -> new HashSet<>());
+    }
+
+    private static long oldestRetainedDay() {
+        return DayClock.getDefault().today() - KEY_RETENTION_DAYS;
+    }
+
+    /**
+     * Forgets the keys of the days past the retention window, and rewrites the
+     * log without them
+     *
+     * @return The oldest epoch day retained
+     */
+    private long expireKeys() {
+        long oldest = oldestRetainedDay();
+        SortedMap<Long, Set<String>> expired = keysByDay.headMap(oldest);
+        if (!expired.isEmpty()) {
+            expired.clear();
+            compactKeys(oldest);
+        }
+        return oldest;
+    }
+
+    /**
+     * Loads the idempotency keys of the batches merged before, and applies
+     * again the accepted uses that did not reach the titres file. Entries of
+     * days past the retention window are skipped and dropped from the log.
+     */
+    private void loadKeys() {
+        File file = new File(KEYS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        long oldest = oldestRetainedDay();
+        int loaded = 0;
+        int expired = 0;
+        int redone = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                LogEntry entry = LogEntry.parse(line);
+                if (entry == null) {
+                    LOGGER.warning("Invalid gate sync log entry: " + line);
+                } else if (entry.usageDay().toEpochDay() < oldest) {
+                    expired++;
+                } else {
+                    keysOf(entry.usageDay()).add(entry.key);
+                    loaded++;
+                    // Carte validations change nothing in the titres file, so only ticket uses are redone
+                    if (entry.accepted() && titreService.getTitreById(entry.titreId) instanceof Ticket
+                            && applyUse(entry.titreId, entry.usedAtEpochMilli) == Status.ACCEPTED) {
+                        redone++;
+                    }
+                }
+            }
+            LOGGER.info("Loaded " + loaded + " gate sync idempotency keys, " + expired + " expired");
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error loading gate sync keys", e);
+            return;
+        }
+        if (redone > 0) {
+            LOGGER.warning("Applied again " + redone + " offline ticket uses missing from the titres file");
+            titreService.flush();
+        }
+        // Only once the redone uses are in the titres file
+        if (expired > 0) {
+            compactKeys(oldest);
+        }
+    }
+
+    /**
+     * Rewrites the log with the entries of the retained days only, through a
+     * temporary file so that a crash leaves either log whole
+     */
+    private void compactKeys(long oldestDay) {
+        File file = new File(KEYS_FILE);
+        File temporary = new File(KEYS_FILE + ".compacting");
+        int kept = 0;
+        try {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file));
+                    Writer writer = new BufferedWriter(new FileWriter(temporary))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    LogEntry entry = line.isEmpty() ? null : LogEntry.parse(line);
+                    if (entry != null && entry.usageDay().toEpochDay() >= oldestDay) {
+                        // Rewritten rather than copied, so that old key-only lines get a time
+                        entry.write(writer);
+                        kept++;
+                    }
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.info("Compacted the gate sync log to " + kept + " entries");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Error compacting gate sync keys, the log keeps its expired entries", e);
+        }
+    }
+
+    /**
+     * Appends the keys of a batch with the usage time of each event, and the
+     * ticket of the accepted uses
+     */
+    private void saveKeys(List<UsageEvent> events, Map<UsageEvent, Status> statuses) {
+        if (events.isEmpty()) {
+            return;
+        }
+        try (Writer writer = new BufferedWriter(new FileWriter(KEYS_FILE, true))) {
+            for (UsageEvent event : events) {
+                new LogEntry(event.getIdempotencyKey(),
+                        statuses.get(event) == Status.ACCEPTED ? event.getTitreId() : LogEntry.NOT_ACCEPTED,
+                        event.getUsedAtEpochMilli()).write(writer);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error saving gate sync keys", e);
+        }
+    }
+
+    /**
+     * A line of the key log: the key, the ticket if the use was accepted and
+     * the usage time, separated by tabs. Lines written before usage times
+     * were logged hold the key alone and count as used today.
+     */
+    private static final class LogEntry {
+
+        private static final int NOT_ACCEPTED = -1;
+
+        final String key;
+        final int titreId;
+        final long usedAtEpochMilli;
+
+        LogEntry(String key, int titreId, long usedAtEpochMilli) {
+            this.key = key;
+            this.titreId = titreId;
+            this.usedAtEpochMilli = usedAtEpochMilli;
+        }
+
+        /**
+         * @return The entry, or null if the line is malformed
+         */
+        static LogEntry parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length == 1) {
+                return new LogEntry(line, NOT_ACCEPTED, DayClock.getDefault().getClock().millis());
+            }
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                int titreId = fields[1].isEmpty() ? NOT_ACCEPTED : Integer.parseInt(fields[1]);
+                return new LogEntry(fields[0], titreId, Long.parseLong(fields[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        void write(Writer writer) throws IOException {
+            writer.write(key);
+            writer.write('\t');
+            if (accepted()) {
+                writer.write(Integer.toString(titreId));
+            }
+            writer.write('\t');
+            writer.write(Long.toString(usedAtEpochMilli));
+            writer.write('\n');
+        }
+
+        boolean accepted() {
+            return titreId != NOT_ACCEPTED;
+        }
+
+        LocalDate usageDay() {
+            return GateSyncService.usageDay(usedAtEpochMilli);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package transport.services;
+
+import java.util.List;
+import java.util.UUID;
+
+import transport.core.Reclamation;
+import transport.core.Ticket;
+import transport.core.TitreTransport;
+
+/**
+ * Personnes filing the most reclamations and buying the most tickets, tracked
+ * with Space-Saving sketches of bounded size instead of one counter per
+ * personne
+ */
+public class HeavyHitterStats {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final SpaceSavingSketch<UUID> complainants;
+    private final SpaceSavingSketch<UUID> ticketBuyers;
+
+    public HeavyHitterStats(ReclamationService reclamationService, TitreTransportService titreService) {
+        this(reclamationService, titreService, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of personnes tracked by each sketch
+     */
+    public HeavyHitterStats(ReclamationService reclamationService, TitreTransportService titreService,
+            int capacity) {
+        complainants = new SpaceSavingSketch<>(capacity);
+        ticketBuyers = new SpaceSavingSketch<>(capacity);
+
+        // A replacement is reported as the removal of a record followed by the
+        // creation of one with the same id, and is not counted again
+        reclamationService.addListener(new ReclamationListener() {
+            private UUID removedId;
+
+            @Override
+            public void onCreated(Reclamation reclamation) {
+                boolean replaced = reclamation.getId() != null && reclamation.getId().equals(removedId);
+                removedId = null;
+                if (!replaced) {
+                    complainants.offer(reclamation.getPersonneId());
+                }
+            }
+
+            @Override
+            public void onRemoved(Reclamation reclamation) {
+                removedId = reclamation.getId();
+            }
+        }, true);
+        titreService.addListener(new TitreTransportListener() {
+            private int removedId = -1;
+
+            @Override
+            public void onIssued(TitreTransport titre) {
+                boolean replaced = titre.getCurrentId() == removedId;
+                removedId = -1;
+                if (titre instanceof Ticket && !replaced) {
+                    ticketBuyers.offer(titre.getPersonneId());
+                }
+            }
+
+            @Override
+            public void onRemoved(TitreTransport titre) {
+                removedId = titre.getCurrentId();
+            }
+        }, true);
+    }
+
+    /**
+     * The k personnes who filed the most reclamations
+     */
+    public List<SpaceSavingSketch.Entry<UUID>> getTopComplainants(int k) {
+        return complainants.top(k);
+    }
+
+    /**
+     * The k personnes who bought the most tickets
+     */
+    public List<SpaceSavingSketch.Entry<UUID>> getTopTicketBuyers(int k) {
+        return ticketBuyers.top(k);
+    }
+}
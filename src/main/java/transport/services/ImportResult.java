@@ -0,0 +1,84 @@
+package transport.services;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of a bulk import: how many records were saved, why the other lines
+ * of the file were not, and which saved lines deserve a second look
+ */
+public final class ImportResult {
+
+    /**
+     * A line of the file with a message: an invalid line, reported instead of
+     * imported, or a warning about a line imported anyway
+     */
+    public static final class LineError {
+
+        private final long line;
+        private final String message;
+
+        LineError(long line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+
+        /**
+         * Line number in the file, starting at 1
+         */
+        public long getLine() {
+            return line;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return "Ligne " + line + " : " + message;
+        }
+    }
+
+    private final long lineCount;
+    private final int importedCount;
+    private final List<LineError> errors;
+    private final List<LineError> warnings;
+
+    ImportResult(long lineCount, int importedCount, List<LineError> errors) {
+        this(lineCount, importedCount, errors, Collections.emptyList());
+    }
+
+    ImportResult(long lineCount, int importedCount, List<LineError> errors, List<LineError> warnings) {
+        this.lineCount = lineCount;
+        this.importedCount = importedCount;
+        this.errors = Collections.unmodifiableList(errors);
+        this.warnings = Collections.unmodifiableList(warnings);
+    }
+
+    /**
+     * Number of records read, header and blank lines excluded
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public int getImportedCount() {
+        return importedCount;
+    }
+
+    /**
+     * The rejected lines, in file order
+     */
+    public List<LineError> getErrors() {
+        return errors;
+    }
+
+    /**
+     * The imported lines that look like a personne already known, in file
+     * order
+     */
+    public List<LineError> getWarnings() {
+        return warnings;
+    }
+}
@@ -0,0 +1,316 @@
+package transport.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Newline-delimited JSON files: one compact record per line, gzipped when the
+ * file name ends with ".gz".
+ * <p>
+ * Writing streams the records one by one. Reading hands the lines to worker
+ * threads: a plain file is cut into one byte range per worker, each starting
+ * after a line break, and every worker reads and parses its own range; a
+ * gzipped file cannot be entered in the middle, so one thread inflates it and
+ * hands chunks of lines to the workers. Either way the records come back in
+ * file order.
+ */
+final class NdjsonFiles {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int CHUNK_LINES = 10_000;
+    // Below this size a single reader is faster than starting workers
+    private static final long MIN_SPLIT_BYTES = 1 << 20;
+
+    /**
+     * Valid records of a file with their line numbers, and the invalid lines
+     */
+    static final class Parsed<T> {
+
+        final List<T> records = new ArrayList<>();
+        final List<Long> lines = new ArrayList<>();
+        final List<ImportResult.LineError> errors = new ArrayList<>();
+        long recordCount;
+        // Lines read, blank ones included, to number the lines of the next part
+        private long lineCount;
+
+        /**
+         * Appends the part of the file that follows this one
+         */
+        private void append(Parsed<T> next) {
+            records.addAll(next.records);
+            for (long line : next.lines) {
+                lines.add(lineCount + line);
+            }
+            for (ImportResult.LineError error : next.errors) {
+                errors.add(new ImportResult.LineError(lineCount + error.getLine(), error.getMessage()));
+            }
+            recordCount += next.recordCount;
+            lineCount += next.lineCount;
+        }
+    }
+
+    private NdjsonFiles() {
+    }
+
+    static boolean isGzip(File file) {
+        return file.getName().endsWith(".gz");
+    }
+
+    /**
+     * Writes the records, one per line
+     *
+     * @return The number of records written
+     */
+    static <T> int write(File file, Iterable<T> records, Function<T, JsonElement> toJson) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (isGzip(file)) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        int count = 0;
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            for (T record : records) {
+                writer.write(toJson.apply(record).toString());
+                writer.write('\n');
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads and parses the records of a file with several threads
+     *
+     * @param parser Builds a record from a line; the message of any runtime
+     * exception it throws is reported as the error of that line
+     */
+    static <T> Parsed<T> read(File file, int workers, Function<String, T> parser) throws IOException {
+        AtomicInteger threads = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers), task -> {
+            Thread thread = new Thread(task, "ndjson-reader-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            if (isGzip(file) || workers <= 1 || file.length() < MIN_SPLIT_BYTES) {
+                return readChunks(file, workers, parser, executor);
+            }
+            return readRanges(file, workers, parser, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static <T> Parsed<T> readRanges(File file, int workers, Function<String, T> parser,
+            ExecutorService executor) throws IOException {
+        long[] bounds = lineBoundaries(file, workers);
+        List<Future<Parsed<T>>> parts = new ArrayList<>(workers);
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            long start = bounds[i];
+            long end = bounds[i + 1];
+            parts.add(executor.submit(() -> {
+                try (BufferedReader reader = reader(new RangeInputStream(file, start, end))) {
+                    Parsed<T> part = new Parsed<>();
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        parseLine(line, ++part.lineCount, parser, part);
+                    }
+                    return part;
+                }
+            }));
+        }
+        Parsed<T> result = new Parsed<>();
+        for (Future<Parsed<T>> part : parts) {
+            result.append(join(part));
+        }
+        return result;
+    }
+
+    private static <T> Parsed<T> readChunks(File file, int workers, Function<String, T> parser,
+            ExecutorService executor) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (isGzip(file)) {
+            in = new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        Deque<Future<Parsed<T>>> inFlight = new ArrayDeque<>();
+        Parsed<T> result = new Parsed<>();
+        try (BufferedReader reader = reader(in)) {
+            List<String> chunk = new ArrayList<>(CHUNK_LINES);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                chunk.add(line);
+                if (chunk.size() == CHUNK_LINES) {
+                    inFlight.addLast(submit(executor, chunk, parser));
+                    chunk = new ArrayList<>(CHUNK_LINES);
+                    // Keep the workers busy without reading far ahead of them
+                    while (inFlight.size() > 2 * workers) {
+                        result.append(join(inFlight.removeFirst()));
+                    }
+                }
+            }
+            if (!chunk.isEmpty()) {
+                inFlight.addLast(submit(executor, chunk, parser));
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            result.append(join(inFlight.removeFirst()));
+        }
+        return result;
+    }
+
+    private static <T> Future<Parsed<T>> submit(ExecutorService executor, List<String> lines,
+            Function<String, T> parser) {
+        return executor.submit(() -> {
+            Parsed<T> part = new Parsed<>();
+            for (String line : lines) {
+                parseLine(line, ++part.lineCount, parser, part);
+            }
+            return part;
+        });
+    }
+
+    private static <T> void parseLine(String line, long lineNumber, Function<String, T> parser, Parsed<T> part) {
+        if (line.trim().isEmpty()) {
+            return;
+        }
+        part.recordCount++;
+        try {
+            T record = parser.apply(line);
+            if (record == null) {
+                throw new IllegalArgumentException("Enregistrement vide");
+            }
+            part.records.add(record);
+            part.lines.add(lineNumber);
+        } catch (RuntimeException e) {
+            part.errors.add(new ImportResult.LineError(lineNumber,
+                    e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+        }
+    }
+
+    private static <T> Parsed<T> join(Future<Parsed<T>> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Lecture interrompue", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Cuts a file into about equal ranges, each starting at the beginning of
+     * a line
+     *
+     * @return The start offsets of the ranges, followed by the file length
+     */
+    private static long[] lineBoundaries(File file, int ranges) throws IOException {
+        long length = file.length();
+        long[] bounds = new long[ranges + 1];
+        bounds[ranges] = length;
+        byte[] buffer = new byte[8192];
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            for (int i = 1; i < ranges; i++) {
+                long position = Math.max(bounds[i - 1], length * i / ranges);
+                bounds[i] = length;
+                // The range starts after the first line break at or after position - 1
+                raf.seek(Math.max(0, position - 1));
+                long offset = raf.getFilePointer();
+                int read;
+                search:
+                while ((read = raf.read(buffer)) > 0) {
+                    for (int j = 0; j < read; j++) {
+                        if (buffer[j] == '\n') {
+                            bounds[i] = offset + j + 1;
+                            break search;
+                        }
+                    }
+                    offset += read;
+                }
+            }
+        }
+        return bounds;
+    }
+
+    private static BufferedReader reader(InputStream in) {
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * The bytes of a file between two offsets
+     */
+    private static final class RangeInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        RangeInputStream(File file, long start, long end) throws IOException {
+            super(new FileInputStream(file));
+            ((FileInputStream) in).getChannel().position(start);
+            this.remaining = end - start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+}
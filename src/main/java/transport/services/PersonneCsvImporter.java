@@ -0,0 +1,273 @@
+package transport.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+import transport.core.Employe;
+import transport.core.Fonction;
+import transport.core.Personne;
+import transport.core.Usager;
+
+/**
+ * Parses CSV files of personnes for {@link PersonneService#importCsv}. Lines
+ * are read as a stream and handed out in chunks to the common fork/join pool,
+ * which parses and validates them in parallel; at most a few chunks are in
+ * flight, so reading never runs far ahead of parsing.
+ * <p>
+ * Columns, separated by commas or semicolons (guessed from the first line),
+ * with an optional header line starting with "type":
+ *
+ * <pre>
+ * type;nom;prenom;dateNaissance;handicap;matricule;fonction
+ * Employe;Benali;Karim;1985-03-12;non;EMP-001;CHAUFFEUR
+ * Usager;Saidi;Amina;14/07/2001;oui;;
+ * </pre>
+ *
+ * Dates are yyyy-MM-dd or dd/MM/yyyy, handicap is oui/non, true/false or 1/0
+ * (empty for non), and fonction is the constant or its label. Rows follow the
+ * rules of the personne form: names and birth date are required, and so are
+ * matricule and fonction for employees. Quoted fields may contain separators
+ * and doubled quotes, but not line breaks.
+ */
+public class PersonneCsvImporter {
+
+    private static final int CHUNK_LINES = 10_000;
+    private static final DateTimeFormatter FRENCH_DATE = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    /**
+     * Valid personnes of a file with their line numbers, and the invalid lines
+     */
+    static final class Parsed {
+
+        final List<Personne> personnes = new ArrayList<>();
+        final List<Long> lines = new ArrayList<>();
+        final List<ImportResult.LineError> errors = new ArrayList<>();
+        long lineCount;
+
+        private void add(Parsed chunk) {
+            personnes.addAll(chunk.personnes);
+            lines.addAll(chunk.lines);
+            errors.addAll(chunk.errors);
+            lineCount += chunk.lineCount;
+        }
+    }
+
+    private PersonneCsvImporter() {
+    }
+
+    /**
+     * Reads and validates a whole file, in parallel chunks. Chunks are merged
+     * in file order.
+     */
+    static Parsed parse(Reader source) throws IOException {
+        BufferedReader reader = source instanceof BufferedReader ? (BufferedReader) source : new BufferedReader(source);
+        int maxInFlight = 2 * ForkJoinPool.getCommonPoolParallelism() + 1;
+        Deque<CompletableFuture<Parsed>> inFlight = new ArrayDeque<>();
+        Parsed result = new Parsed();
+
+        char separator = ',';
+        long lineNumber = 0;
+        List<String> chunk = new ArrayList<>(CHUNK_LINES);
+        long chunkStart = 1;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (lineNumber == 1) {
+                if (line.startsWith("\uFEFF")) {
+                    line = line.substring(1);
+                }
+                separator = guessSeparator(line);
+                if (line.trim().toLowerCase(Locale.ROOT).startsWith("type")) {
+                    chunkStart = 2;
+                    continue;
+                }
+            }
+            chunk.add(line);
+            if (chunk.size() == CHUNK_LINES) {
+                submit(inFlight, chunk, chunkStart, separator);
+                chunkStart += chunk.size();
+                chunk = new ArrayList<>(CHUNK_LINES);
+                while (inFlight.size() > maxInFlight) {
+                    result.add(inFlight.removeFirst().join());
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            submit(inFlight, chunk, chunkStart, separator);
+        }
+        while (!inFlight.isEmpty()) {
+            result.add(inFlight.removeFirst().join());
+        }
+        return result;
+    }
+
+    private static void submit(Deque<CompletableFuture<Parsed>> inFlight, List<String> lines, long firstLine,
+            char separator) {
+        inFlight.addLast(CompletableFuture.supplyAsync(() -> parseChunk(lines, firstLine, separator)));
+    }
+
+    private static Parsed parseChunk(List<String> lines, long firstLine, char separator) {
+        Parsed parsed = new Parsed();
+        // Birth dates repeat a lot in staff lists, each distinct one is parsed once
+        Map<String, LocalDate> dates = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            long lineNumber = firstLine + i;
+            parsed.lineCount++;
+            try {
+                parsed.personnes.add(parseRow(split(line, separator), dates));
+                parsed.lines.add(lineNumber);
+            } catch (IllegalArgumentException e) {
+                parsed.errors.add(new ImportResult.LineError(lineNumber, e.getMessage()));
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Builds a personne from the fields of a line, with the checks of the
+     * personne form
+     *
+     * @param dates Birth dates already parsed, by text
+     * @throws IllegalArgumentException with a message for the user if the line
+     * is invalid
+     */
+    static Personne parseRow(List<String> fields, Map<String, LocalDate> dates) {
+        if (fields.size() < 5) {
+            throw new IllegalArgumentException("Colonnes manquantes (" + fields.size() + " au lieu de 5 ou 7)");
+        }
+        String type = fields.get(0).toLowerCase(Locale.ROOT);
+        String name = fields.get(1);
+        String familyName = fields.get(2);
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Le nom ne peut pas être vide");
+        }
+        if (familyName.isEmpty()) {
+            throw new IllegalArgumentException("Le prénom ne peut pas être vide");
+        }
+        LocalDate birthDate = dates.get(fields.get(3));
+        if (birthDate == null) {
+            birthDate = parseDate(fields.get(3));
+            dates.put(fields.get(3), birthDate);
+        }
+        boolean hasHandicap = parseBoolean(fields.get(4));
+
+        switch (type) {
+            case "employe":
+            case "employé":
+                String matricule = fields.size() > 5 ? fields.get(5) : "";
+                if (matricule.isEmpty()) {
+                    throw new IllegalArgumentException("Le matricule ne peut pas être vide");
+                }
+                Fonction fonction = parseFonction(fields.size() > 6 ? fields.get(6) : "");
+                return new Employe(name, familyName, birthDate, hasHandicap, matricule, fonction);
+            case "usager":
+                return new Usager(name, familyName, birthDate, hasHandicap);
+            default:
+                throw new IllegalArgumentException("Type de personne inconnu : " + fields.get(0));
+        }
+    }
+
+    private static LocalDate parseDate(String value) {
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("La date de naissance ne peut pas être vide");
+        }
+        try {
+            return value.indexOf('/') >= 0 ? LocalDate.parse(value, FRENCH_DATE) : LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Date de naissance invalide : " + value);
+        }
+    }
+
+    private static boolean parseBoolean(String value) {
+        switch (value.toLowerCase(Locale.ROOT)) {
+            case "":
+            case "non":
+            case "false":
+            case "0":
+                return false;
+            case "oui":
+            case "true":
+            case "1":
+                return true;
+            default:
+                throw new IllegalArgumentException("Valeur de handicap invalide : " + value);
+        }
+    }
+
+    private static Fonction parseFonction(String value) {
+        if (value.isEmpty()) {
+            throw new IllegalArgumentException("La fonction ne peut pas être vide");
+        }
+        for (Fonction fonction : Fonction.values()) {
+            if (fonction.name().equalsIgnoreCase(value) || fonction.getLibelle().equalsIgnoreCase(value)) {
+                return fonction;
+            }
+        }
+        throw new IllegalArgumentException("Fonction inconnue : " + value);
+    }
+
+    private static char guessSeparator(String firstLine) {
+        int commas = 0;
+        int semicolons = 0;
+        for (int i = 0; i < firstLine.length(); i++) {
+            char c = firstLine.charAt(i);
+            if (c == ',') {
+                commas++;
+            } else if (c == ';') {
+                semicolons++;
+            }
+        }
+        return semicolons > commas ? ';' : ',';
+    }
+
+    /**
+     * Splits a line into trimmed fields, honouring double quotes
+     */
+    static List<String> split(String line, char separator) {
+        List<String> fields = new ArrayList<>(7);
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    field.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == separator) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Guillemet non fermé");
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+}
@@ -0,0 +1,231 @@
+package transport.services;
+
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import transport.core.Employe;
+import transport.core.Personne;
+
+/**
+ * Detects likely duplicate Personne records using blocking keys built from the
+ * normalized name, family name and birth date. Each person is indexed under an
+ * exact key and phonetic variants (also with name and family name swapped) so a
+ * lookup at insert only touches the few candidates sharing a key. Homonyms born
+ * the same day do exist, so matches are only proposed, never refused.
+ */
+class PersonneDuplicateDetector {
+
+    private static final String EXACT_PREFIX = "E|";
+    private static final String PHONETIC_PREFIX = "P|";
+
+    private final Map<String, Set<UUID>> index = new HashMap<>();
+
+    /**
+     * Rebuilds the index from the given personnes
+     */
+    void rebuild(Collection<Personne> personnes) {
+        index.clear();
+        for (Personne personne : personnes) {
+            add(personne);
+        }
+    }
+
+    void add(Personne personne) {
+        for (String key : blockingKeys(personne)) {
+            index.computeIfAbsent(key, k -> new HashSet<>()).add(personne.getId());
+        }
+    }
+
+    void remove(Personne personne) {
+        for (String key : blockingKeys(personne)) {
+            Set<UUID> ids = index.get(key);
+            if (ids != null) {
+                ids.remove(personne.getId());
+                if (ids.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of other personnes sharing any blocking key (exact or
+     * phonetic) with the given one
+     */
+    Set<UUID> findPotentialDuplicates(Personne personne) {
+        return lookup(blockingKeys(personne), personne.getId());
+    }
+
+    /**
+     * Whether two personnes sharing a blocking key are known to be different
+     * people: employees with different matricules
+     */
+    static boolean distinguishable(Personne a, Personne b) {
+        if (!(a instanceof Employe) || !(b instanceof Employe)) {
+            return false;
+        }
+        String matriculeA = normalize(((Employe) a).getMatricule());
+        String matriculeB = normalize(((Employe) b).getMatricule());
+        return !matriculeA.isEmpty() && !matriculeB.isEmpty() && !matriculeA.equals(matriculeB);
+    }
+
+    private Set<UUID> lookup(List<String> keys, UUID self) {
+        Set<UUID> result = new LinkedHashSet<>();
+        for (String key : keys) {
+            Set<UUID> ids = index.get(key);
+            if (ids != null) {
+                result.addAll(ids);
+            }
+        }
+        result.remove(self);
+        return result;
+    }
+
+    /**
+     * Clusters likely duplicates across the whole list. Keys are computed in
+     * parallel, then records sharing any key are merged with a union-find. The
+     * first element of each cluster is the oldest record and is proposed as the
+     * one to keep.
+     */
+    static List<List<Personne>> findClusters(List<Personne> personnes) {
+        ConcurrentMap<String, List<Integer>> groups = IntStream.range(0, personnes.size())
+                .parallel()
+                .boxed()
+                .flatMap(i -> blockingKeys(personnes.get(i)).stream()
+                        .filter(key -> key.startsWith(PHONETIC_PREFIX))
+                        .map(key -> new AbstractMap.SimpleEntry<>(key, i)))
+                .collect(Collectors.groupingByConcurrent(Map.Entry::getKey,
+                        Collectors.mapping(Map.Entry::getValue, Collectors.toList())));
+
+        int[] parent = IntStream.range(0, personnes.size()).toArray();
+        for (List<Integer> group : groups.values()) {
+            for (int i = 1; i < group.size(); i++) {
+                union(parent, group.get(0), group.get(i));
+            }
+        }
+
+        Map<Integer, List<Integer>> clusters = new HashMap<>();
+        for (int i = 0; i < personnes.size(); i++) {
+            clusters.computeIfAbsent(find(parent, i), k -> new ArrayList<>()).add(i);
+        }
+
+        return clusters.values().stream()
+                .filter(members -> members.size() > 1)
+                .map(members -> members.stream().sorted().map(personnes::get).collect(Collectors.toList()))
+                .sorted((a, b) -> Integer.compare(b.size(), a.size()))
+                .collect(Collectors.toList());
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA != rootB) {
+            // Keep the smallest index (oldest record) as root
+            parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    private static List<String> blockingKeys(Personne personne) {
+        String name = normalize(personne.getName());
+        String familyName = normalize(personne.getFamilyName());
+        String birthDate = birthDate(personne);
+        List<String> keys = new ArrayList<>(3);
+        keys.add(EXACT_PREFIX + name + "|" + familyName + "|" + birthDate);
+        keys.add(PHONETIC_PREFIX + phonetic(name) + "|" + phonetic(familyName) + "|" + birthDate);
+        // Name and family name are often entered in the wrong fields
+        keys.add(PHONETIC_PREFIX + phonetic(familyName) + "|" + phonetic(name) + "|" + birthDate);
+        return keys;
+    }
+
+    private static String birthDate(Personne personne) {
+        LocalDate birthDate = personne.getBirthDate();
+        return birthDate != null ? birthDate.toString() : "";
+    }
+
+    /**
+     * Lower-cases and strips accents, spaces and punctuation
+     */
+    static String normalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Soundex-style phonetic code of an already normalized value, tolerant to
+     * the usual transliteration variants (ou/u, ph/f, double letters, silent h)
+     */
+    static String phonetic(String normalized) {
+        if (normalized.isEmpty()) {
+            return "";
+        }
+        String s = normalized.replace("ph", "f").replace("ou", "u").replace("ck", "k").replace("qu", "k");
+        StringBuilder code = new StringBuilder(4);
+        code.append(s.charAt(0));
+        char last = soundexDigit(s.charAt(0));
+        for (int i = 1; i < s.length() && code.length() < 4; i++) {
+            char c = s.charAt(i);
+            char digit = soundexDigit(c);
+            if (digit != '0' && digit != last) {
+                code.append(digit);
+            }
+            // 'h' and 'w' do not separate identical codes
+            if (c != 'h' && c != 'w') {
+                last = digit;
+            }
+        }
+        while (code.length() < 4) {
+            code.append('0');
+        }
+        return code.toString();
+    }
+
+    private static char soundexDigit(char c) {
+        switch (c) {
+            case 'b': case 'f': case 'p': case 'v':
+                return '1';
+            case 'c': case 'g': case 'j': case 'k': case 'q': case 's': case 'x': case 'z':
+                return '2';
+            case 'd': case 't':
+                return '3';
+            case 'l':
+                return '4';
+            case 'm': case 'n':
+                return '5';
+            case 'r':
+                return '6';
+            default:
+                return '0';
+        }
+    }
+}
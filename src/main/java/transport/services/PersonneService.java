@@ -3,25 +3,27 @@ package transport.services;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
-import java.io.Writer;
 import java.lang.reflect.Type;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
@@ -31,8 +33,6 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
 
 import transport.core.Employe;
 import transport.core.Fonction;
@@ -42,6 +42,12 @@ import transport.core.Usager;
 /**
  * Service class to manage Personne entities and their subclasses (Employe,
  * Usager) Handles JSON serialization/deserialization and CRUD operations
+ * <p>
+ * Readers get an unmodifiable copy of the list, made at most once per version
+ * (the first read after a write pays O(n), later ones get it as is). It only
+ * freezes which personnes there are: the records themselves are shared with
+ * the service, so neither readers nor exports get a point-in-time view of
+ * their contents.
  */
 public class PersonneService {
 
@@ -49,6 +55,12 @@ public class PersonneService {
     private static final String DATA_DIRECTORY = "data";
     private static final String PERSONNE_FILE = DATA_DIRECTORY + "/personnes.json";
     private List<Personne> personnes = new ArrayList<>();
+    private final Map<UUID, Personne> personnesById = new ConcurrentHashMap<>();
+    private final List<Consumer<UUID>> deletionListeners = new CopyOnWriteArrayList<>();
+    // Read-only copy of the list handed out to readers as is, dropped on every
+    // write and copied again on the next read
+    private volatile List<Personne> snapshot;
+    private final PersonneDuplicateDetector duplicateDetector = new PersonneDuplicateDetector();
     private final Gson gson;
 
     public PersonneService() {
@@ -57,9 +69,6 @@ public class PersonneService {
                 .registerTypeAdapter(LocalDate.class, new LocalDateAdapter())
                 .registerTypeAdapter(UUID.class, new UUIDAdapter())
                 .registerTypeAdapter(Personne.class, new PersonneAdapter())
-                // Register a type adapter for List<Personne> to handle polymorphism correctly
-                .registerTypeAdapter(new TypeToken<ArrayList<Personne>>() {
-                }.getType(), new PersonneListAdapter())
                 .setPrettyPrinting()
                 .create();
 
@@ -76,10 +85,13 @@ public class PersonneService {
     /**
      * Retrieves all Personne entities
      *
-     * @return A copy of the list of all personnes
+     * @return An unmodifiable copy of the list, unaffected by later additions
+     * and deletions; the personnes in it are the live records, so an edit made
+     * after the copy shows in it
      */
     public List<Personne> getAllPersonnes() {
-        return new ArrayList<>(personnes);
+        List<Personne> current = snapshot;
+        return current != null ? current : publishSnapshot();
     }
 
     /**
@@ -89,21 +101,31 @@ public class PersonneService {
      * @return The Personne object or null if not found
      */
     public Personne getPersonneById(UUID id) {
-        return personnes.stream()
-                .filter(p -> p.getId().equals(id))
-                .findFirst()
-                .orElse(null);
+        return id != null ? personnesById.get(id) : null;
+    }
+
+    /**
+     * Registers a listener notified with the id of every deleted Personne, so
+     * that services holding dependent records can cascade the deletion
+     *
+     * @param listener The callback receiving the deleted Personne's UUID
+     */
+    public void addDeletionListener(Consumer<UUID> listener) {
+        deletionListeners.add(listener);
     }
 
     /**
      * Saves a Personne entity (create or update)
      *
      * @param personne The Personne object to save
+     * @return The existing personnes a new personne is likely a duplicate of,
+     * saved anyway; forms ask the user with
+     * {@link #findPotentialDuplicates(Personne)} before saving
      */
-    public void savePersonne(Personne personne) {
+    public synchronized List<Personne> savePersonne(Personne personne) {
         if (personne == null) {
             LOGGER.warning("Attempted to save null Personne object");
-            return;
+            return Collections.emptyList();
         }
 
         // If the personne doesn't have an ID yet, generate one
@@ -112,36 +134,171 @@ public class PersonneService {
         }
 
         // Check if personne already exists
-        boolean exists = false;
-        for (int i = 0; i < personnes.size(); i++) {
-            if (personnes.get(i).getId().equals(personne.getId())) {
-                personnes.set(i, personne);
-                exists = true;
-                break;
+        Personne existing = personnesById.get(personne.getId());
+        List<Personne> similar = Collections.emptyList();
+        if (existing != null) {
+            duplicateDetector.remove(existing);
+            personnes.set(personnes.indexOf(existing), personne);
+        } else {
+            similar = findPotentialDuplicates(personne);
+            if (!similar.isEmpty()) {
+                LOGGER.warning("Possible duplicate of " + similar + " saved: " + personne);
             }
-        }
-
-        if (!exists) {
             personnes.add(personne);
         }
+        personnesById.put(personne.getId(), personne);
+        duplicateDetector.add(personne);
 
         saveData();
+        return similar;
+    }
+
+    /**
+     * Imports the personnes of a CSV file, parsed and validated in parallel
+     * chunks (see {@link PersonneCsvImporter} for the format). Invalid lines
+     * are reported and skipped; the others are saved at once, with a single
+     * write of the file, and those that look like a saved or earlier personne
+     * are reported as warnings.
+     *
+     * @param reader The CSV content, read as a stream
+     * @return The number of personnes imported and the rejected lines
+     * @throws IOException if the content cannot be read; nothing is imported
+     */
+    public ImportResult importCsv(Reader reader) throws IOException {
+        // Parse outside of the lock, readers and writers are not held up meanwhile
+        PersonneCsvImporter.Parsed parsed = PersonneCsvImporter.parse(reader);
+        List<ImportResult.LineError> errors = new ArrayList<>(parsed.errors);
+        List<ImportResult.LineError> warnings = new ArrayList<>();
+        int imported = addImported(parsed.personnes, parsed.lines, errors, warnings);
+        LOGGER.info("Imported " + imported + " of " + parsed.lineCount + " Personne CSV records, "
+                + errors.size() + " rejected, " + warnings.size() + " possible duplicates");
+        return new ImportResult(parsed.lineCount, imported, errors, warnings);
+    }
+
+    /**
+     * Writes every personne to a newline-delimited JSON file, one record per
+     * line, gzipped if the file name ends with ".gz". The personnes written
+     * are those saved when the export starts, each as it is when written.
+     *
+     * @return The number of personnes written
+     */
+    public int exportNdjson(File file) throws IOException {
+        int count = NdjsonFiles.write(file, getAllPersonnes(), personne -> gson.toJsonTree(personne, Personne.class));
+        LOGGER.info("Exported " + count + " Personne records to " + file);
+        return count;
+    }
+
+    /**
+     * Imports the personnes of a newline-delimited JSON file, as written by
+     * {@link #exportNdjson(File)}, parsed by several threads. Invalid lines
+     * and personnes already saved with the same id are reported and skipped;
+     * the others are saved at once, likely duplicates with a warning.
+     *
+     * @param workers The number of threads parsing the file
+     */
+    public ImportResult importNdjson(File file, int workers) throws IOException {
+        NdjsonFiles.Parsed<Personne> parsed = NdjsonFiles.read(file, workers,
+                line -> gson.fromJson(line, Personne.class));
+        List<ImportResult.LineError> errors = new ArrayList<>(parsed.errors);
+        List<ImportResult.LineError> warnings = new ArrayList<>();
+        int imported = addImported(parsed.records, parsed.lines, errors, warnings);
+        LOGGER.info("Imported " + imported + " of " + parsed.recordCount + " Personne NDJSON records, "
+                + errors.size() + " rejected, " + warnings.size() + " possible duplicates");
+        return new ImportResult(parsed.recordCount, imported, errors, warnings);
+    }
+
+    /**
+     * Adds imported personnes and writes the file once
+     *
+     * @param lines The line of each personne in the imported file
+     * @param errors Receives the rejected personnes, and ends up sorted by line
+     * @param warnings Receives the likely duplicates, added anyway, in line
+     * order
+     * @return The number of personnes added
+     */
+    private synchronized int addImported(List<Personne> imported, List<Long> lines,
+            List<ImportResult.LineError> errors, List<ImportResult.LineError> warnings) {
+        int added = 0;
+        for (int i = 0; i < imported.size(); i++) {
+            Personne personne = imported.get(i);
+            if (personne.getId() == null) {
+                personne.setId(UUID.randomUUID());
+            } else if (personnesById.containsKey(personne.getId())) {
+                errors.add(new ImportResult.LineError(lines.get(i), "Personne déjà présente : " + personne.getId()));
+                continue;
+            }
+            List<Personne> similar = findPotentialDuplicates(personne);
+            if (!similar.isEmpty()) {
+                warnings.add(new ImportResult.LineError(lines.get(i), "Doublon possible de " + similar));
+            }
+            duplicateDetector.add(personne);
+            personnes.add(personne);
+            personnesById.put(personne.getId(), personne);
+            added++;
+        }
+        if (added > 0) {
+            saveData();
+        }
+        errors.sort(Comparator.comparingLong(ImportResult.LineError::getLine));
+        return added;
     }
 
     /**
-     * Deletes a Personne by ID
+     * Deletes a Personne by ID. Registered deletion listeners are notified so
+     * that the personne's titres and reclamations are removed as well
      *
      * @param id The UUID of the Personne to delete
      * @return true if found and deleted, false otherwise
      */
     public boolean deletePersonne(UUID id) {
-        boolean removed = personnes.removeIf(p -> p.getId().equals(id));
+        boolean removed;
+        synchronized (this) {
+            Personne personne = getPersonneById(id);
+            removed = personne != null && personnes.remove(personne);
+            if (removed) {
+                personnesById.remove(id);
+                duplicateDetector.remove(personne);
+                saveData();
+            }
+        }
+        // Listeners take their own locks, so notify them outside of ours
         if (removed) {
-            saveData();
+            for (Consumer<UUID> listener : deletionListeners) {
+                listener.accept(id);
+            }
         }
         return removed;
     }
 
+    /**
+     * Finds existing personnes that are likely the same rider as the given one
+     * (same birth date and phonetically close names). Employees with different
+     * matricules are never proposed.
+     *
+     * @param personne The Personne to check, saved or not
+     * @return The matching personnes, excluding the given one
+     */
+    public synchronized List<Personne> findPotentialDuplicates(Personne personne) {
+        List<Personne> matches = new ArrayList<>();
+        for (UUID id : duplicateDetector.findPotentialDuplicates(personne)) {
+            Personne match = getPersonneById(id);
+            if (match != null && !PersonneDuplicateDetector.distinguishable(personne, match)) {
+                matches.add(match);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Clusters likely duplicates across all personnes, scanning in parallel
+     *
+     * @return The proposed merges, one list per cluster; the first personne of
+     * each cluster is the oldest record and the one to keep
+     */
+    public List<List<Personne>> findDuplicateClusters() {
+        return PersonneDuplicateDetector.findClusters(getAllPersonnes());
+    }
+
     /**
      * Loads Personne data from the JSON file
      */
@@ -149,58 +306,74 @@ public class PersonneService {
         File file = new File(PERSONNE_FILE);
 
         if (file.exists()) {
-            try (Reader reader = new FileReader(file)) {
-                // Use Gson's TypeToken for proper generic type resolution
-                Type personneListType = new TypeToken<ArrayList<Personne>>() {
-                }.getType();
-                List<Personne> loadedPersonnes = gson.fromJson(reader, personneListType);
-
-                if (loadedPersonnes != null) {
-                    // Validate loaded data
-                    List<Personne> validPersonnes = new ArrayList<>();
-                    for (Personne p : loadedPersonnes) {
-                        if (p != null && p.getId() != null) {
-                            validPersonnes.add(p);
-                        } else {
-                            LOGGER.warning("Skipped invalid Personne record during loading");
-                        }
+            try {
+                // Records are read one by one, upgraded from older file versions
+                List<Personne> loadedPersonnes = new ArrayList<>();
+                DataMigrator.readFile(file, DataMigrator.Store.PERSONNES, record -> {
+                    try {
+                        loadedPersonnes.add(gson.fromJson(record, Personne.class));
+                    } catch (JsonParseException e) {
+                        LOGGER.log(Level.WARNING, "Error deserializing a Personne record, skipping: " + e.getMessage());
+                    }
+                });
+
+                // Validate loaded data
+                List<Personne> validPersonnes = new ArrayList<>();
+                personnesById.clear();
+                for (Personne p : loadedPersonnes) {
+                    if (p != null && p.getId() != null && !personnesById.containsKey(p.getId())) {
+                        validPersonnes.add(p);
+                        personnesById.put(p.getId(), p);
+                    } else {
+                        LOGGER.warning("Skipped invalid Personne record during loading");
                     }
-                    personnes = validPersonnes;
-                } else {
-                    personnes = new ArrayList<>();
                 }
+                personnes = validPersonnes;
+                duplicateDetector.rebuild(personnes);
 
                 LOGGER.info("Loaded " + personnes.size() + " Personne records");
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, "Error loading Personne data", e);
                 personnes = new ArrayList<>();
-            } catch (JsonSyntaxException e) {
+                personnesById.clear();
+            } catch (JsonParseException | IllegalStateException e) {
                 LOGGER.log(Level.SEVERE, "Error parsing Personne JSON data", e);
                 personnes = new ArrayList<>();
+                personnesById.clear();
                 // Backup the corrupted file for investigation
                 backupCorruptedFile();
             }
         } else {
             LOGGER.info("No existing Personne data file found. Starting with empty list.");
         }
+        snapshot = null;
+    }
+
+    /**
+     * Copies the list for readers, once per version: writes only drop the
+     * previous copy, so a burst of writes costs a single copy
+     */
+    private synchronized List<Personne> publishSnapshot() {
+        if (snapshot == null) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(personnes));
+        }
+        return snapshot;
     }
 
     /**
      * Saves Personne data to the JSON file
      */
     private void saveData() {
-        try (Writer writer = new FileWriter(PERSONNE_FILE)) {
+        // Readers see the new version before it reaches the disk
+        snapshot = null;
+        try {
             // Log the data before serialization
             LOGGER.fine("Serializing " + personnes.size() + " Personne records");
 
-            // Use our custom type token to ensure the adapter is used
-            Type personneListType = new TypeToken<ArrayList<Personne>>() {
-            }.getType();
-
-            // Convert to JSON and write to file
-            String jsonData = gson.toJson(personnes, personneListType);
-            LOGGER.finest("JSON output: " + jsonData);
-            writer.write(jsonData);
+            // Write one record at a time instead of building the whole document
+            // in memory first, which dominated the time of large imports
+            DataMigrator.writeFile(new File(PERSONNE_FILE), personnes,
+                    personne -> gson.toJsonTree(personne, Personne.class));
 
             LOGGER.info("Successfully saved " + personnes.size() + " Personne records");
         } catch (IOException e) {
@@ -396,79 +569,4 @@ public class PersonneService {
             }
         }
     }
-
-    /**
-     * Type adapter for handling lists of Personne objects
-     */
-    private static class PersonneListAdapter implements JsonSerializer<List<Personne>>, JsonDeserializer<List<Personne>> {
-
-        @Override
-        public JsonElement serialize(List<Personne> personnes, Type typeOfSrc, JsonSerializationContext context) {
-            JsonArray jsonArray = new JsonArray();
-
-            for (Personne personne : personnes) {
-                // Create object with type information
-                JsonObject personneObject = new JsonObject();
-
-                // Determine the type
-                String className;
-                if (personne instanceof Employe) {
-                    className = "Employe";
-                } else if (personne instanceof Usager) {
-                    className = "Usager";
-                } else {
-                    throw new JsonParseException("Unknown Personne type: " + personne.getClass().getName());
-                }
-
-                personneObject.add("type", new JsonPrimitive(className));
-
-                // Add data field
-                JsonObject dataObject = new JsonObject();
-
-                // Common fields
-                dataObject.add("id", context.serialize(personne.getId()));
-                dataObject.add("name", new JsonPrimitive(personne.getName()));
-                dataObject.add("familyName", new JsonPrimitive(personne.getFamilyName()));
-                dataObject.add("birthDate", context.serialize(personne.getBirthDate()));
-                dataObject.add("hasHandicap", new JsonPrimitive(personne.hasHandicap()));
-
-                // Special fields for Employe
-                if (personne instanceof Employe) {
-                    Employe employe = (Employe) personne;
-                    dataObject.add("matricule", new JsonPrimitive(
-                            employe.getMatricule() != null ? employe.getMatricule() : ""));
-
-                    if (employe.getFonction() != null) {
-                        dataObject.add("fonction", new JsonPrimitive(employe.getFonction().name()));
-                    } else {
-                        dataObject.add("fonction", JsonNull.INSTANCE);
-                    }
-                }
-
-                personneObject.add("data", dataObject);
-                jsonArray.add(personneObject);
-            }
-
-            return jsonArray;
-        }
-
-        @Override
-        public List<Personne> deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-                throws JsonParseException {
-            List<Personne> personnes = new ArrayList<>();
-            JsonArray jsonArray = json.getAsJsonArray();
-
-            for (JsonElement element : jsonArray) {
-                try {
-                    // Use the existing PersonneAdapter logic for each element
-                    Personne personne = context.deserialize(element, Personne.class);
-                    personnes.add(personne);
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING, "Error deserializing a Personne record, skipping: " + e.getMessage());
-                }
-            }
-
-            return personnes;
-        }
-    }
 }
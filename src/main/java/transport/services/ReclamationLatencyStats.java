@@ -0,0 +1,137 @@
+package transport.services;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import transport.core.Reclamation;
+import transport.core.ReclamationStatus;
+import transport.core.ReclamationType;
+
+/**
+ * Resolution times (dateTraitement - dateReclamation, in seconds) of the
+ * processed reclamations, per ReclamationType and final status. Each day of
+ * processing has its own histograms, which are merged to answer a range of
+ * days; running totals answer the whole history without merging.
+ */
+public class ReclamationLatencyStats {
+
+    private static final ReclamationStatus[] FINAL_STATUSES = {
+        ReclamationStatus.TRAITE, ReclamationStatus.REFUSE, ReclamationStatus.ANNULE
+    };
+    // One more value for reclamations without a type
+    private static final int TYPES = ReclamationType.values().length + 1;
+    private static final int CELLS = TYPES * FINAL_STATUSES.length;
+
+    private final AtomicReferenceArray<LatencyHistogram> totals = new AtomicReferenceArray<>(CELLS);
+    // Histograms allocated on first use, since most days only see a few cells
+    private final Map<Long, AtomicReferenceArray<LatencyHistogram>> days = new ConcurrentHashMap<>();
+
+    public ReclamationLatencyStats(ReclamationService reclamationService) {
+        reclamationService.addListener(new ReclamationListener() {
+            @Override
+            public void onCreated(Reclamation reclamation) {
+                record(reclamation, 1);
+            }
+
+            @Override
+            public void onProcessed(Reclamation reclamation, ReclamationStatus previous) {
+                if (previous == ReclamationStatus.EN_COURS) {
+                    record(reclamation, 1);
+                }
+            }
+
+            @Override
+            public void onRemoved(Reclamation reclamation) {
+                record(reclamation, -1);
+            }
+        }, true);
+    }
+
+    /**
+     * Resolution times over the whole history
+     *
+     * @param type The type, or null for all
+     * @param status The final status, or null for all
+     * @return A new histogram, unaffected by later changes
+     */
+    public LatencyHistogram getHistogram(ReclamationType type, ReclamationStatus status) {
+        return merge(totals, type, status, new LatencyHistogram());
+    }
+
+    /**
+     * Resolution times of the reclamations processed between two days included
+     *
+     * @param type The type, or null for all
+     * @param status The final status, or null for all
+     * @return A new histogram, unaffected by later changes
+     */
+    public LatencyHistogram getHistogram(LocalDate from, LocalDate to, ReclamationType type,
+            ReclamationStatus status) {
+        LatencyHistogram result = new LatencyHistogram();
+        for (long day = from.toEpochDay(); day <= to.toEpochDay(); day++) {
+            AtomicReferenceArray<LatencyHistogram> cells = days.get(day);
+            if (cells != null) {
+                merge(cells, type, status, result);
+            }
+        }
+        return result;
+    }
+
+    private static LatencyHistogram merge(AtomicReferenceArray<LatencyHistogram> cells, ReclamationType type,
+            ReclamationStatus status, LatencyHistogram result) {
+        for (int t = 0; t < TYPES; t++) {
+            if (type != null && typeIndex(type) != t) {
+                continue;
+            }
+            for (int s = 0; s < FINAL_STATUSES.length; s++) {
+                if (status != null && FINAL_STATUSES[s] != status) {
+                    continue;
+                }
+                LatencyHistogram histogram = cells.get(t * FINAL_STATUSES.length + s);
+                if (histogram != null) {
+                    result.add(histogram);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void record(Reclamation reclamation, int count) {
+        int s = statusIndex(reclamation.getEtat());
+        if (s < 0 || reclamation.getDateReclamation() == null || reclamation.getDateTraitement() == null) {
+            return;
+        }
+        long seconds = Duration.between(reclamation.getDateReclamation(), reclamation.getDateTraitement()).getSeconds();
+        int cell = typeIndex(reclamation.getType()) * FINAL_STATUSES.length + s;
+        histogram(totals, cell).recordValue(seconds, count);
+        AtomicReferenceArray<LatencyHistogram> cells = days.computeIfAbsent(
+                reclamation.getDateTraitement().toLocalDate().toEpochDay(),
+                day -> new AtomicReferenceArray<>(CELLS));
+        histogram(cells, cell).recordValue(seconds, count);
+    }
+
+    private static LatencyHistogram histogram(AtomicReferenceArray<LatencyHistogram> cells, int cell) {
+        LatencyHistogram histogram = cells.get(cell);
+        if (histogram == null) {
+            cells.compareAndSet(cell, null, new LatencyHistogram());
+            histogram = cells.get(cell);
+        }
+        return histogram;
+    }
+
+    private static int statusIndex(ReclamationStatus status) {
+        for (int s = 0; s < FINAL_STATUSES.length; s++) {
+            if (FINAL_STATUSES[s] == status) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    private static int typeIndex(ReclamationType type) {
+        return type != null ? type.ordinal() + 1 : 0;
+    }
+}
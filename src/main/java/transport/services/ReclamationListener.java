@@ -0,0 +1,45 @@
+package transport.services;
+
+import transport.core.Reclamation;
+import transport.core.ReclamationStatus;
+
+/**
+ * Receives the changes made to the reclamations of a
+ * {@link ReclamationService}. Callbacks run while the service lock is held, in
+ * the order of the changes, and must not call back into the service's writing
+ * methods.
+ */
+public interface ReclamationListener {
+
+    /**
+     * A reclamation was filed, or replaced when {@link #onReplaced} is not
+     * overridden
+     */
+    default void onCreated(Reclamation reclamation) {
+    }
+
+    /**
+     * A reclamation was saved again by {@code saveReclamation}, for instance
+     * after an edit of its description. By default the previous record is
+     * reported removed and the new one created.
+     */
+    default void onReplaced(Reclamation previous, Reclamation reclamation) {
+        onRemoved(previous);
+        onCreated(reclamation);
+    }
+
+    /**
+     * A reclamation was treated, refused or cancelled
+     *
+     * @param previous The status before processing
+     */
+    default void onProcessed(Reclamation reclamation, ReclamationStatus previous) {
+    }
+
+    /**
+     * A reclamation was deleted, or replaced when {@link #onReplaced} is not
+     * overridden
+     */
+    default void onRemoved(Reclamation reclamation) {
+    }
+}
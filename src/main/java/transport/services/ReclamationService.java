@@ -1,7 +1,6 @@
 package transport.services;
 
 import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
 import transport.core.*;
 
 import java.io.*;
@@ -10,9 +9,16 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
@@ -20,15 +26,25 @@ import java.util.stream.Collectors;
 /**
  * Service class to manage Reclamation entities Handles JSON
  * serialization/deserialization and CRUD operations
+ * <p>
+ * The sorted list handed to readers is rebuilt on the first read after a
+ * write and shared until the next one. Reclamations are processed in place,
+ * so a reader holding the list, an export included, sees status changes made
+ * after it was built.
  */
 public class ReclamationService {
 
     private static final Logger LOGGER = Logger.getLogger(ReclamationService.class.getName());
     private static final String DATA_DIRECTORY = "data";
     private static final String RECLAMATION_FILE = DATA_DIRECTORY + "/reclamations.json";
-    private List<Reclamation> reclamations = new ArrayList<>();
+    private Map<UUID, Reclamation> reclamations = new LinkedHashMap<>();
+    private final Map<UUID, List<Reclamation>> reclamationsByPersonne = new HashMap<>();
+    // Read-only copy of the list, most recent first, dropped on every write and
+    // copied again on the next read
+    private volatile List<Reclamation> snapshot;
     private final Gson gson;
     private final PersonneService personneService;
+    private final List<ReclamationListener> listeners = new CopyOnWriteArrayList<>();
 
     public ReclamationService(PersonneService personneService) {
         this.personneService = personneService;
@@ -51,87 +67,186 @@ public class ReclamationService {
 
         // Load existing data
         loadData();
+
+        // Remove the reclamations of deleted personnes
+        personneService.addDeletionListener(this::deleteReclamationsForPerson);
     }
 
     /**
      * Retrieves all Reclamation entities, sorted by date (most recent first)
+     *
+     * @return An unmodifiable copy of the list, unaffected by later additions
+     * and deletions; the reclamations in it are the live records, so one
+     * processed after the copy shows its new status
      */
     public List<Reclamation> getAllReclamations() {
-        return reclamations.stream()
-                .sorted(Comparator.comparing(Reclamation::getDateReclamation).reversed())
-                .collect(Collectors.toList());
+        List<Reclamation> current = snapshot;
+        return current != null ? current : publishSnapshot();
     }
 
     /**
      * Retrieves a specific Reclamation by ID
      */
-    public Reclamation getReclamationById(UUID id) {
-        return reclamations.stream()
-                .filter(r -> r.getId().equals(id))
-                .findFirst()
-                .orElse(null);
+    public synchronized Reclamation getReclamationById(UUID id) {
+        return id != null ? reclamations.get(id) : null;
     }
 
     /**
      * Retrieves Reclamations for a specific person
      */
-    public List<Reclamation> getReclamationsForPerson(UUID personneId) {
-        return reclamations.stream()
-                .filter(r -> r.getPersonneId().equals(personneId))
+    public synchronized List<Reclamation> getReclamationsForPerson(UUID personneId) {
+        return reclamationsByPersonne.getOrDefault(personneId, Collections.emptyList()).stream()
                 .sorted(Comparator.comparing(Reclamation::getDateReclamation).reversed())
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Registers a listener notified of every reclamation filed, processed or
+     * deleted
+     */
+    public void addListener(ReclamationListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Registers a listener and, atomically with it, passes every reclamation
+     * already in the store to its {@code onCreated}
+     */
+    public synchronized void addListener(ReclamationListener listener, boolean replayExisting) {
+        if (replayExisting) {
+            for (Reclamation reclamation : reclamations.values()) {
+                listener.onCreated(reclamation);
+            }
+        }
+        listeners.add(listener);
+    }
+
     /**
      * Creates a new Reclamation
      */
-    public Reclamation createReclamation(Personne personne, String description, ReclamationType type) {
+    public synchronized Reclamation createReclamation(Personne personne, String description, ReclamationType type) {
         Reclamation reclamation = new Reclamation(personne, description, type);
-        reclamations.add(reclamation);
+        addReclamation(reclamation);
+        for (ReclamationListener listener : listeners) {
+            listener.onCreated(reclamation);
+        }
         saveData();
         return reclamation;
     }
 
+    /**
+     * Files several new reclamations at once, writing the file once
+     *
+     * @param created Reclamations built with
+     * {@link Reclamation#Reclamation(Personne, String, ReclamationType)}
+     */
+    public synchronized void createReclamations(List<Reclamation> created) {
+        if (created.isEmpty()) {
+            return;
+        }
+        for (Reclamation reclamation : created) {
+            addReclamation(reclamation);
+            for (ReclamationListener listener : listeners) {
+                listener.onCreated(reclamation);
+            }
+        }
+        saveData();
+        LOGGER.info("Created " + created.size() + " Reclamation records");
+    }
+
     /**
      * Process a reclamation (treat, refuse, or cancel)
      */
-    public void processReclamation(Reclamation reclamation, ReclamationStatus newStatus, String response) {
+    public synchronized void processReclamation(Reclamation reclamation, ReclamationStatus newStatus, String response) {
         Reclamation existing = getReclamationById(reclamation.getId());
         if (existing != null) {
-            switch (newStatus) {
-                case TRAITE:
-                    existing.traiter(response);
-                    break;
-                case REFUSE:
-                    existing.refuser(response);
-                    break;
-                case ANNULE:
-                    existing.annuler();
-                    break;
-                default:
-                    // Do nothing for other statuses
-                    break;
+            ReclamationStatus previous = existing.getEtat();
+            applyStatus(existing, newStatus, response);
+            for (ReclamationListener listener : listeners) {
+                listener.onProcessed(existing, previous);
             }
             saveData();
         }
     }
 
     /**
-     * Save a Reclamation
+     * Processes many reclamations at once, for instance the duplicates filed
+     * about the same outage. Every transition is checked before any is
+     * applied: all the reclamations must exist and be EN_COURS, and the new
+     * status must be TRAITE, REFUSE or ANNULE. The changes are then applied in
+     * parallel and the file is written once.
+     *
+     * @return the number of reclamations processed
+     * @throws IllegalArgumentException if a transition is not allowed, in
+     * which case nothing is changed
      */
-    public void saveReclamation(Reclamation reclamation) {
-        // Check if reclamation already exists
-        boolean exists = false;
-        for (int i = 0; i < reclamations.size(); i++) {
-            if (reclamations.get(i).getId().equals(reclamation.getId())) {
-                reclamations.set(i, reclamation);
-                exists = true;
-                break;
+    public synchronized int processReclamations(Collection<UUID> ids, ReclamationStatus newStatus, String response) {
+        if (newStatus == null || newStatus == ReclamationStatus.EN_COURS) {
+            throw new IllegalArgumentException("Statut de traitement invalide : " + newStatus);
+        }
+        List<Reclamation> targets = new ArrayList<>(ids.size());
+        List<String> errors = new ArrayList<>();
+        for (UUID id : new LinkedHashSet<>(ids)) {
+            Reclamation existing = getReclamationById(id);
+            if (existing == null) {
+                errors.add("introuvable : " + id);
+            } else if (!existing.isEnCours()) {
+                errors.add("déjà " + existing.getEtat() + " : " + id);
+            } else {
+                targets.add(existing);
             }
         }
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Réclamations non traitables (" + errors.size() + ") : "
+                    + String.join(", ", errors.subList(0, Math.min(errors.size(), 10)))
+                    + (errors.size() > 10 ? ", ..." : ""));
+        }
+        if (targets.isEmpty()) {
+            return 0;
+        }
+
+        // Each task updates a distinct reclamation
+        targets.parallelStream().forEach(reclamation -> applyStatus(reclamation, newStatus, response));
+        for (Reclamation reclamation : targets) {
+            for (ReclamationListener listener : listeners) {
+                listener.onProcessed(reclamation, ReclamationStatus.EN_COURS);
+            }
+        }
+        saveData();
+        LOGGER.info("Processed " + targets.size() + " Reclamation records as " + newStatus.name());
+        return targets.size();
+    }
+
+    private static void applyStatus(Reclamation reclamation, ReclamationStatus newStatus, String response) {
+        switch (newStatus) {
+            case TRAITE:
+                reclamation.traiter(response);
+                break;
+            case REFUSE:
+                reclamation.refuser(response);
+                break;
+            case ANNULE:
+                reclamation.annuler();
+                break;
+            default:
+                // Do nothing for other statuses
+                break;
+        }
+    }
 
-        if (!exists) {
-            reclamations.add(reclamation);
+    /**
+     * Save a Reclamation
+     */
+    public synchronized void saveReclamation(Reclamation reclamation) {
+        // Replace the existing reclamation, if any
+        Reclamation previous = detachReclamation(reclamation.getId());
+        addReclamation(reclamation);
+        for (ReclamationListener listener : listeners) {
+            if (previous != null) {
+                listener.onReplaced(previous, reclamation);
+            } else {
+                listener.onCreated(reclamation);
+            }
         }
 
         saveData();
@@ -140,14 +255,140 @@ public class ReclamationService {
     /**
      * Delete a Reclamation
      */
-    public boolean deleteReclamation(UUID id) {
-        boolean removed = reclamations.removeIf(r -> r.getId().equals(id));
+    public synchronized boolean deleteReclamation(UUID id) {
+        boolean removed = removeReclamation(id);
         if (removed) {
             saveData();
         }
         return removed;
     }
 
+    /**
+     * Deletes all the reclamations of a personne, in O(number of reclamations
+     * of that personne). Called when the personne is deleted.
+     *
+     * @return the number of reclamations removed
+     */
+    public synchronized int deleteReclamationsForPerson(UUID personneId) {
+        List<Reclamation> dependents = reclamationsByPersonne.remove(personneId);
+        if (dependents == null) {
+            return 0;
+        }
+        for (Reclamation reclamation : dependents) {
+            reclamations.remove(reclamation.getId());
+            for (ReclamationListener listener : listeners) {
+                listener.onRemoved(reclamation);
+            }
+        }
+        LOGGER.info("Deleted " + dependents.size() + " Reclamation records of Personne " + personneId);
+        saveData();
+        return dependents.size();
+    }
+
+    /**
+     * Writes every reclamation to a newline-delimited JSON file, one record
+     * per line, gzipped if the file name ends with ".gz". Reclamations filed
+     * during the export are left out, but one processed meanwhile may be
+     * written with its new status.
+     *
+     * @return The number of reclamations written
+     */
+    public int exportNdjson(File file) throws IOException {
+        int count = NdjsonFiles.write(file, getAllReclamations(), reclamation -> gson.toJsonTree(reclamation, Reclamation.class));
+        LOGGER.info("Exported " + count + " Reclamation records to " + file);
+        return count;
+    }
+
+    /**
+     * Imports the reclamations of a newline-delimited JSON file, as written by
+     * {@link #exportNdjson(File)}, parsed by several threads. Invalid lines,
+     * reclamations of unknown personnes and reclamations already saved are
+     * reported and skipped; the others are saved at once.
+     *
+     * @param workers The number of threads parsing the file
+     */
+    public ImportResult importNdjson(File file, int workers) throws IOException {
+        NdjsonFiles.Parsed<Reclamation> parsed = NdjsonFiles.read(file, workers,
+                line -> gson.fromJson(line, Reclamation.class));
+        List<ImportResult.LineError> errors = new ArrayList<>(parsed.errors);
+        int imported = addImported(parsed.records, parsed.lines, errors);
+        LOGGER.info("Imported " + imported + " of " + parsed.recordCount + " Reclamation NDJSON records, "
+                + errors.size() + " rejected");
+        return new ImportResult(parsed.recordCount, imported, errors);
+    }
+
+    /**
+     * Adds imported reclamations, notifies the listeners and writes the file
+     * once
+     *
+     * @param lines The line of each reclamation in the imported file
+     * @param errors Receives the rejected reclamations, and ends up sorted by
+     * line
+     * @return The number of reclamations added
+     */
+    private synchronized int addImported(List<Reclamation> imported, List<Long> lines,
+            List<ImportResult.LineError> errors) {
+        int added = 0;
+        for (int i = 0; i < imported.size(); i++) {
+            Reclamation reclamation = imported.get(i);
+            if (reclamation.getId() == null || reclamation.getPersonneId() == null) {
+                errors.add(new ImportResult.LineError(lines.get(i), "Identifiant manquant"));
+            } else if (personneService.getPersonneById(reclamation.getPersonneId()) == null) {
+                errors.add(new ImportResult.LineError(lines.get(i), "Personne introuvable : " + reclamation.getPersonneId()));
+            } else if (reclamations.containsKey(reclamation.getId())) {
+                errors.add(new ImportResult.LineError(lines.get(i), "Réclamation déjà présente : " + reclamation.getId()));
+            } else {
+                addReclamation(reclamation);
+                for (ReclamationListener listener : listeners) {
+                    listener.onCreated(reclamation);
+                }
+                added++;
+            }
+        }
+        if (added > 0) {
+            saveData();
+        }
+        errors.sort(Comparator.comparingLong(ImportResult.LineError::getLine));
+        return added;
+    }
+
+    private void addReclamation(Reclamation reclamation) {
+        reclamations.put(reclamation.getId(), reclamation);
+        reclamationsByPersonne.computeIfAbsent(reclamation.getPersonneId(), k -> new ArrayList<>()).add(reclamation);
+    }
+
+    private boolean removeReclamation(UUID id) {
+        Reclamation removed = detachReclamation(id);
+        if (removed == null) {
+            return false;
+        }
+        for (ReclamationListener listener : listeners) {
+            listener.onRemoved(removed);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a reclamation out of the map and the per-personne index, without
+     * telling the listeners
+     *
+     * @return The reclamation removed, or null if there was none
+     */
+    private Reclamation detachReclamation(UUID id) {
+        Reclamation removed = id != null ? reclamations.remove(id) : null;
+        if (removed == null) {
+            return null;
+        }
+        List<Reclamation> dependents = reclamationsByPersonne.get(removed.getPersonneId());
+        if (dependents != null) {
+            dependents.remove(removed);
+            if (dependents.isEmpty()) {
+                reclamationsByPersonne.remove(removed.getPersonneId());
+            }
+        }
+        return removed;
+    }
+
     /**
      * Loads Reclamation data from the JSON file
      */
@@ -155,36 +396,60 @@ public class ReclamationService {
         File file = new File(RECLAMATION_FILE);
 
         if (file.exists()) {
-            try (Reader reader = new FileReader(file)) {
-                Type reclamationListType = new TypeToken<ArrayList<Reclamation>>() {
-                }.getType();
-                List<Reclamation> loadedReclamations = gson.fromJson(reader, reclamationListType);
-
-                if (loadedReclamations != null) {
-                    reclamations = loadedReclamations;
-                } else {
-                    reclamations = new ArrayList<>();
+            try {
+                // Records are read one by one, upgraded from older file versions
+                List<Reclamation> loadedReclamations = new ArrayList<>();
+                DataMigrator.readFile(file, DataMigrator.Store.RECLAMATIONS,
+                        record -> loadedReclamations.add(gson.fromJson(record, Reclamation.class)));
+
+                reclamations = new LinkedHashMap<>();
+                reclamationsByPersonne.clear();
+                int orphans = 0;
+                for (Reclamation reclamation : loadedReclamations) {
+                    if (personneService.getPersonneById(reclamation.getPersonneId()) == null) {
+                        orphans++;
+                    } else {
+                        addReclamation(reclamation);
+                    }
+                }
+                if (orphans > 0) {
+                    LOGGER.warning("Dropped " + orphans + " Reclamation records of deleted personnes");
                 }
 
                 LOGGER.info("Loaded " + reclamations.size() + " Reclamation records");
-            } catch (IOException | JsonSyntaxException e) {
+            } catch (IOException | JsonParseException | IllegalStateException e) {
                 LOGGER.log(Level.SEVERE, "Error loading Reclamation data", e);
-                reclamations = new ArrayList<>();
+                reclamations = new LinkedHashMap<>();
+                reclamationsByPersonne.clear();
             }
         } else {
             LOGGER.info("No existing Reclamation data file found. Starting with empty list.");
         }
+        snapshot = null;
+    }
+
+    /**
+     * Sorts a copy of the list for readers, once per version: writes only drop
+     * the previous copy, so a burst of writes costs a single sort
+     */
+    private synchronized List<Reclamation> publishSnapshot() {
+        if (snapshot == null) {
+            snapshot = Collections.unmodifiableList(reclamations.values().stream()
+                    .sorted(Comparator.comparing(Reclamation::getDateReclamation).reversed())
+                    .collect(Collectors.toList()));
+        }
+        return snapshot;
     }
 
     /**
      * Saves Reclamation data to the JSON file
      */
     private void saveData() {
-        try (Writer writer = new FileWriter(RECLAMATION_FILE)) {
-            Type reclamationListType = new TypeToken<ArrayList<Reclamation>>() {
-            }.getType();
-            String jsonData = gson.toJson(reclamations, reclamationListType);
-            writer.write(jsonData);
+        // Readers see the new version before it reaches the disk
+        snapshot = null;
+        try {
+            DataMigrator.writeFile(new File(RECLAMATION_FILE), reclamations.values(),
+                    reclamation -> gson.toJsonTree(reclamation, Reclamation.class));
             LOGGER.info("Successfully saved " + reclamations.size() + " Reclamation records");
         } catch (IOException e) {
             LOGGER.log(Level.SEVERE, "Error saving Reclamation data", e);
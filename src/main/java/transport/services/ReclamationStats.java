@@ -0,0 +1,106 @@
+package transport.services;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import transport.core.Reclamation;
+import transport.core.ReclamationStatus;
+import transport.core.ReclamationType;
+
+/**
+ * Reclamation counts per status, type and filing day, updated as reclamations
+ * are filed, treated, refused, cancelled or deleted. Counts are read from
+ * counters without scanning the reclamations, for a live backlog dashboard.
+ */
+public class ReclamationStats {
+
+    private static final int STATUSES = ReclamationStatus.values().length;
+    // One more value for reclamations without a type
+    private static final int TYPES = ReclamationType.values().length + 1;
+    private static final int CELLS = STATUSES * TYPES;
+
+    private final AtomicLongArray totals = new AtomicLongArray(CELLS);
+    private final Map<Long, AtomicLongArray> days = new ConcurrentHashMap<>();
+
+    public ReclamationStats(ReclamationService reclamationService) {
+        reclamationService.addListener(new ReclamationListener() {
+            @Override
+            public void onCreated(Reclamation reclamation) {
+                record(reclamation, reclamation.getEtat(), 1);
+            }
+
+            @Override
+            public void onProcessed(Reclamation reclamation, ReclamationStatus previous) {
+                record(reclamation, previous, -1);
+                record(reclamation, reclamation.getEtat(), 1);
+            }
+
+            @Override
+            public void onRemoved(Reclamation reclamation) {
+                record(reclamation, reclamation.getEtat(), -1);
+            }
+        }, true);
+    }
+
+    /**
+     * Number of reclamations EN_COURS
+     */
+    public long getBacklog() {
+        return getCount(ReclamationStatus.EN_COURS, null);
+    }
+
+    /**
+     * Number of reclamations with the given status and type
+     *
+     * @param status The status, or null for all
+     * @param type The type, or null for all
+     */
+    public long getCount(ReclamationStatus status, ReclamationType type) {
+        return sum(totals, status, type);
+    }
+
+    /**
+     * Number of reclamations filed on a day that have the given status and
+     * type
+     *
+     * @param status The status, or null for all
+     * @param type The type, or null for all
+     */
+    public long getCount(LocalDate day, ReclamationStatus status, ReclamationType type) {
+        AtomicLongArray counters = days.get(day.toEpochDay());
+        return counters != null ? sum(counters, status, type) : 0;
+    }
+
+    private static long sum(AtomicLongArray counters, ReclamationStatus status, ReclamationType type) {
+        long total = 0;
+        for (int s = 0; s < STATUSES; s++) {
+            if (status != null && status.ordinal() != s) {
+                continue;
+            }
+            for (int t = 0; t < TYPES; t++) {
+                if (type == null || typeIndex(type) == t) {
+                    total += counters.get(s * TYPES + t);
+                }
+            }
+        }
+        return total;
+    }
+
+    private void record(Reclamation reclamation, ReclamationStatus status, int delta) {
+        if (status == null) {
+            return;
+        }
+        int cell = status.ordinal() * TYPES + typeIndex(reclamation.getType());
+        totals.addAndGet(cell, delta);
+        if (reclamation.getDateReclamation() != null) {
+            days.computeIfAbsent(reclamation.getDateReclamation().toLocalDate().toEpochDay(),
+                    day -> new AtomicLongArray(CELLS)).addAndGet(cell, delta);
+        }
+    }
+
+    private static int typeIndex(ReclamationType type) {
+        return type != null ? type.ordinal() + 1 : 0;
+    }
+}
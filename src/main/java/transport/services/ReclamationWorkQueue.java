@@ -0,0 +1,310 @@
+package transport.services;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import transport.core.DayClock;
+import transport.core.Reclamation;
+import transport.core.ReclamationStatus;
+import transport.core.ReclamationType;
+
+/**
+ * Work queue of the reclamations still EN_COURS, shared by the agents treating
+ * them.
+ * <p>
+ * Each reclamation gets an SLA deadline from its type and filing date, and the
+ * queue hands out the earliest deadline first: urgent types jump ahead, and
+ * within a type the oldest comes first. {@link #claimNext(String)} removes the
+ * head of a concurrent skip list, so two agents never get the same
+ * reclamation. Deadlines are also scheduled on a timing wheel ticking once a
+ * minute, which escalates overdue reclamations as their deadline passes
+ * without rescanning the backlog. Reclamations already overdue when queued,
+ * for instance at startup, are escalated by the next {@link #checkSla()}, so
+ * listeners registered right after construction are told about them too.
+ * Filing dates are read in the zone of the queue's clock.
+ */
+public class ReclamationWorkQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(ReclamationWorkQueue.class.getName());
+    private static final long MINUTE_MILLIS = 60_000;
+    private static final Map<ReclamationType, Duration> SLA = new EnumMap<>(ReclamationType.class);
+
+    static {
+        SLA.put(ReclamationType.PAIEMENT, Duration.ofHours(24));
+        SLA.put(ReclamationType.TECHNIQUE, Duration.ofHours(48));
+        SLA.put(ReclamationType.SERVICE, Duration.ofHours(72));
+        SLA.put(ReclamationType.AUTRE, Duration.ofHours(120));
+    }
+
+    private static final class Entry {
+
+        // Replaced when the reclamation is saved again with the same deadline
+        volatile Reclamation reclamation;
+        final long deadlineMillis;
+        final long sequence;
+        volatile String agent;
+        volatile boolean escalated;
+        // Guarded by timerLock
+        TimingWheel.Timeout<Entry> timeout;
+
+        Entry(Reclamation reclamation, long deadlineMillis, long sequence) {
+            this.reclamation = reclamation;
+            this.deadlineMillis = deadlineMillis;
+            this.sequence = sequence;
+        }
+    }
+
+    private final Clock clock;
+    private final AtomicLong sequence = new AtomicLong();
+    // Every reclamation EN_COURS, waiting or claimed
+    private final Map<UUID, Entry> entries = new ConcurrentHashMap<>();
+    // The ones waiting for an agent, earliest deadline first
+    private final ConcurrentSkipListSet<Entry> waiting = new ConcurrentSkipListSet<>(
+            Comparator.<Entry>comparingLong(e -> e.deadlineMillis).thenComparingLong(e -> e.sequence));
+    private final ReentrantLock timerLock = new ReentrantLock();
+    private final TimingWheel<Entry> slaTimers;
+    // Entries queued past their deadline, escalated by the next check
+    private final ConcurrentLinkedQueue<Entry> overdueOnArrival = new ConcurrentLinkedQueue<>();
+    private final List<Consumer<Reclamation>> escalationListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong escalations = new AtomicLong();
+
+    public ReclamationWorkQueue(ReclamationService reclamationService) {
+        this(reclamationService, DayClock.getDefault().getClock());
+    }
+
+    public ReclamationWorkQueue(ReclamationService reclamationService, Clock clock) {
+        this.clock = clock;
+        this.slaTimers = new TimingWheel<>(clock.millis() / MINUTE_MILLIS);
+
+        reclamationService.addListener(new ReclamationListener() {
+            @Override
+            public void onCreated(Reclamation reclamation) {
+                if (reclamation.isEnCours()) {
+                    enqueue(reclamation);
+                }
+            }
+
+            @Override
+            public void onProcessed(Reclamation reclamation, ReclamationStatus previous) {
+                if (reclamation.isEnCours()) {
+                    enqueue(reclamation);
+                } else {
+                    remove(reclamation.getId());
+                }
+            }
+
+            @Override
+            public void onReplaced(Reclamation previous, Reclamation reclamation) {
+                replace(reclamation);
+            }
+
+            @Override
+            public void onRemoved(Reclamation reclamation) {
+                remove(reclamation.getId());
+            }
+        }, true);
+        LOGGER.info("Reclamation work queue started with " + entries.size() + " reclamations, "
+                + overdueOnArrival.size() + " already overdue");
+    }
+
+    /**
+     * Hands the most urgent waiting reclamation to an agent
+     *
+     * @return The reclamation, or null if none is waiting
+     */
+    public Reclamation claimNext(String agent) {
+        checkSla();
+        Entry entry;
+        while ((entry = waiting.pollFirst()) != null) {
+            // Skip entries processed or replaced since they were queued
+            if (entries.get(entry.reclamation.getId()) == entry && entry.reclamation.isEnCours()) {
+                entry.agent = agent;
+                return entry.reclamation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts a claimed reclamation back in the queue, for instance when its
+     * agent leaves
+     *
+     * @return false if the reclamation is not claimed
+     */
+    public boolean release(UUID reclamationId) {
+        Entry entry = entries.get(reclamationId);
+        if (entry == null || entry.agent == null) {
+            return false;
+        }
+        entry.agent = null;
+        waiting.add(entry);
+        return true;
+    }
+
+    /**
+     * @return The agent treating the reclamation, or null if it is waiting or
+     * not in the queue
+     */
+    public String getAgent(UUID reclamationId) {
+        Entry entry = entries.get(reclamationId);
+        return entry != null ? entry.agent : null;
+    }
+
+    public boolean isEscalated(UUID reclamationId) {
+        Entry entry = entries.get(reclamationId);
+        return entry != null && entry.escalated;
+    }
+
+    /**
+     * Number of reclamations EN_COURS, waiting or claimed
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Number of reclamations escalated since the queue started
+     */
+    public long getEscalationCount() {
+        return escalations.get();
+    }
+
+    /**
+     * Registers a listener called with each reclamation whose SLA deadline
+     * passed
+     */
+    public void addEscalationListener(Consumer<Reclamation> listener) {
+        escalationListeners.add(listener);
+    }
+
+    /**
+     * Escalates the reclamations whose deadline passed since the last check.
+     * Claims do this on their own; runtimes also call it periodically.
+     */
+    public void checkSla() {
+        if (!timerLock.tryLock()) {
+            // Another thread is already advancing the timers
+            return;
+        }
+        List<Entry> overdue = new ArrayList<>();
+        try {
+            Entry entry;
+            while ((entry = overdueOnArrival.poll()) != null) {
+                overdue.add(entry);
+            }
+            slaTimers.advanceTo(clock.millis() / MINUTE_MILLIS, overdue::add);
+        } finally {
+            timerLock.unlock();
+        }
+        // Listeners may call the reclamation service, so they run without the lock
+        for (Entry entry : overdue) {
+            if (entries.get(entry.reclamation.getId()) != entry) {
+                continue;
+            }
+            entry.escalated = true;
+            escalations.incrementAndGet();
+            LOGGER.warning("Reclamation " + entry.reclamation.getId() + " (" + entry.reclamation.getType()
+                    + ") passed its deadline" + (entry.agent != null ? ", claimed by " + entry.agent : ", unclaimed"));
+            for (Consumer<Reclamation> listener : escalationListeners) {
+                listener.accept(entry.reclamation);
+            }
+        }
+    }
+
+    /**
+     * @return false if the reclamation was already queued
+     */
+    private boolean enqueue(Reclamation reclamation) {
+        Entry entry = new Entry(reclamation, deadlineOf(reclamation), sequence.incrementAndGet());
+        if (entries.putIfAbsent(reclamation.getId(), entry) != null) {
+            return false;
+        }
+        timerLock.lock();
+        try {
+            entry.timeout = slaTimers.schedule(entry, entry.deadlineMillis / MINUTE_MILLIS);
+            // Already overdue when queued, for instance after a restart
+            if (entry.timeout == null) {
+                overdueOnArrival.add(entry);
+            }
+        } finally {
+            timerLock.unlock();
+        }
+        waiting.add(entry);
+        return true;
+    }
+
+    private long deadlineOf(Reclamation reclamation) {
+        Duration sla = SLA.get(reclamation.getType() != null ? reclamation.getType() : ReclamationType.AUTRE);
+        long filedAt = reclamation.getDateReclamation() != null
+                ? reclamation.getDateReclamation().atZone(clock.getZone()).toInstant().toEpochMilli()
+                : clock.millis();
+        return filedAt + sla.toMillis();
+    }
+
+    /**
+     * Follows a reclamation saved again: its claim and escalation are kept,
+     * and its deadline is only rescheduled if its type or filing date changed
+     */
+    private void replace(Reclamation reclamation) {
+        Entry entry = entries.get(reclamation.getId());
+        if (entry == null || !reclamation.isEnCours()) {
+            remove(reclamation.getId());
+            if (reclamation.isEnCours()) {
+                enqueue(reclamation);
+            }
+            return;
+        }
+        long deadline = deadlineOf(reclamation);
+        if (deadline == entry.deadlineMillis) {
+            entry.reclamation = reclamation;
+            return;
+        }
+        // The deadline orders the waiting set, so the entry is swapped for a new one
+        Entry moved = new Entry(reclamation, deadline, sequence.incrementAndGet());
+        moved.agent = entry.agent;
+        moved.escalated = entry.escalated;
+        entries.put(reclamation.getId(), moved);
+        boolean wasWaiting = waiting.remove(entry);
+        timerLock.lock();
+        try {
+            slaTimers.cancel(entry.timeout);
+            moved.timeout = slaTimers.schedule(moved, deadline / MINUTE_MILLIS);
+            if (moved.timeout == null && !moved.escalated) {
+                overdueOnArrival.add(moved);
+            }
+        } finally {
+            timerLock.unlock();
+        }
+        if (wasWaiting) {
+            waiting.add(moved);
+        }
+    }
+
+    private void remove(UUID reclamationId) {
+        Entry entry = entries.remove(reclamationId);
+        if (entry == null) {
+            return;
+        }
+        waiting.remove(entry);
+        timerLock.lock();
+        try {
+            slaTimers.cancel(entry.timeout);
+        } finally {
+            timerLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package transport.services;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import transport.core.CartePersonnelle;
+import transport.core.ModeDePaiement;
+import transport.core.TitreTransport;
+import transport.core.TypeCarte;
+
+/**
+ * Revenue and sale counts per day, kind of titre, TypeCarte and payment mode,
+ * updated on every sale and deletion instead of summing the whole history on
+ * every read. Each day holds one small array of counters, so any total for a
+ * day, filtered or not, reads a bounded number of cells.
+ */
+public class RevenueRollup {
+
+    public enum Kind {
+        TICKET,
+        CARTE
+    }
+
+    private static final int KINDS = Kind.values().length;
+    // One more value for tickets (no TypeCarte) and for titres without a payment mode
+    private static final int TYPES = TypeCarte.values().length + 1;
+    private static final int MODES = ModeDePaiement.values().length + 1;
+    private static final int CELLS = KINDS * TYPES * MODES;
+
+    // Per epoch day: sale count and revenue of each cell, interleaved
+    private final Map<Long, AtomicLongArray> days = new ConcurrentHashMap<>();
+
+    public RevenueRollup(TitreTransportService titreService) {
+        titreService.addListener(new TitreTransportListener() {
+            @Override
+            public void onIssued(TitreTransport titre) {
+                record(titre, 1);
+            }
+
+            @Override
+            public void onRemoved(TitreTransport titre) {
+                record(titre, -1);
+            }
+        }, true);
+    }
+
+    /**
+     * Revenue of a day, in DA
+     */
+    public long getRevenue(LocalDate day) {
+        return getRevenue(day, null, null, null);
+    }
+
+    /**
+     * Revenue of a day, in DA, for the matching titres
+     *
+     * @param kind The kind of titre, or null for all
+     * @param typeCarte The TypeCarte, or null for all
+     * @param mode The payment mode, or null for all
+     */
+    public long getRevenue(LocalDate day, Kind kind, TypeCarte typeCarte, ModeDePaiement mode) {
+        return sum(day, kind, typeCarte, mode, 1);
+    }
+
+    /**
+     * Number of titres sold on a day, among the matching ones
+     *
+     * @see #getRevenue(LocalDate, Kind, TypeCarte, ModeDePaiement)
+     */
+    public long getCount(LocalDate day, Kind kind, TypeCarte typeCarte, ModeDePaiement mode) {
+        return sum(day, kind, typeCarte, mode, 0);
+    }
+
+    /**
+     * Revenue of the days from {@code from} to {@code to} included
+     */
+    public long getRevenue(LocalDate from, LocalDate to, Kind kind, TypeCarte typeCarte, ModeDePaiement mode) {
+        long total = 0;
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            total += getRevenue(day, kind, typeCarte, mode);
+        }
+        return total;
+    }
+
+    private long sum(LocalDate day, Kind kind, TypeCarte typeCarte, ModeDePaiement mode, int offset) {
+        AtomicLongArray counters = days.get(day.toEpochDay());
+        if (counters == null) {
+            return 0;
+        }
+        long total = 0;
+        for (int k = 0; k < KINDS; k++) {
+            if (kind != null && kind.ordinal() != k) {
+                continue;
+            }
+            for (int t = 0; t < TYPES; t++) {
+                if (typeCarte != null && typeCarte.ordinal() + 1 != t) {
+                    continue;
+                }
+                for (int m = 0; m < MODES; m++) {
+                    if (mode != null && mode.ordinal() + 1 != m) {
+                        continue;
+                    }
+                    total += counters.get(2 * cell(k, t, m) + offset);
+                }
+            }
+        }
+        return total;
+    }
+
+    private void record(TitreTransport titre, int sign) {
+        boolean carte = titre instanceof CartePersonnelle;
+        TypeCarte typeCarte = carte ? ((CartePersonnelle) titre).getType() : null;
+        int k = carte ? Kind.CARTE.ordinal() : Kind.TICKET.ordinal();
+        int t = typeCarte != null ? typeCarte.ordinal() + 1 : 0;
+        int m = titre.getModeDePaiement() != null ? titre.getModeDePaiement().ordinal() + 1 : 0;
+        AtomicLongArray counters = days.computeIfAbsent(titre.getDateAchat().toLocalDate().toEpochDay(),
+                day -> new AtomicLongArray(2 * CELLS));
+        int index = 2 * cell(k, t, m);
+        counters.addAndGet(index, sign);
+        counters.addAndGet(index + 1, (long) sign * titre.getPrixValue());
+    }
+
+    private static int cell(int kind, int type, int mode) {
+        return (kind * TYPES + type) * MODES + mode;
+    }
+}
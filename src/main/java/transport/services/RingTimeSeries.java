@@ -0,0 +1,133 @@
+package transport.services;
+
+import java.util.Arrays;
+
+/**
+ * Event counts over fixed-size rings of buckets at three resolutions: the
+ * last hour per second, the last day per minute and the last 30 days per
+ * hour. Each event is added to its bucket at every resolution, so the coarser
+ * rings are the downsampled sums of the finer ones without any rollup pass.
+ * <p>
+ * Every bucket remembers which period it holds; a bucket found holding an
+ * older period is reset when written and reads as zero when read, so rings
+ * never need to be swept. Recording touches three array cells and allocates
+ * nothing.
+ */
+public class RingTimeSeries {
+
+    public enum Resolution {
+        SECOND(1_000, 3_600),
+        MINUTE(60_000, 1_440),
+        HOUR(3_600_000, 720);
+
+        private final long millis;
+        private final int buckets;
+
+        Resolution(long millis, int buckets) {
+            this.millis = millis;
+            this.buckets = buckets;
+        }
+
+        /**
+         * Duration of a bucket, in milliseconds
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * Number of buckets kept
+         */
+        public int getBuckets() {
+            return buckets;
+        }
+    }
+
+    private static final Resolution[] RESOLUTIONS = Resolution.values();
+
+    // Per resolution: the count and the period index of each bucket
+    private final long[][] counts = new long[RESOLUTIONS.length][];
+    private final long[][] periods = new long[RESOLUTIONS.length][];
+    // Per resolution: the most recent period recorded, which sets the span
+    private final long[] latest = new long[RESOLUTIONS.length];
+
+    public RingTimeSeries() {
+        for (Resolution resolution : RESOLUTIONS) {
+            counts[resolution.ordinal()] = new long[resolution.buckets];
+            periods[resolution.ordinal()] = new long[resolution.buckets];
+        }
+        clear();
+    }
+
+    /**
+     * Counts one event at the given time
+     */
+    public void record(long epochMillis) {
+        record(epochMillis, 1);
+    }
+
+    /**
+     * Counts events at the given time. Events older than a ring's span,
+     * counted back from the most recent event recorded, are left out of that
+     * ring and only reach the coarser rings that still cover them.
+     */
+    public synchronized void record(long epochMillis, long count) {
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            long period = Math.floorDiv(epochMillis, RESOLUTIONS[r].millis);
+            long[] bucketPeriods = periods[r];
+            if (period <= latest[r] - bucketPeriods.length) {
+                continue;
+            }
+            latest[r] = Math.max(latest[r], period);
+            int slot = (int) Math.floorMod(period, (long) bucketPeriods.length);
+            if (bucketPeriods[slot] == period) {
+                counts[r][slot] += count;
+            } else if (bucketPeriods[slot] < period) {
+                bucketPeriods[slot] = period;
+                counts[r][slot] = count;
+            }
+        }
+    }
+
+    /**
+     * Counts of the last buckets at a resolution, oldest first, the last one
+     * being the bucket of {@code nowMillis}
+     *
+     * @param buckets How many buckets, at most the ring size
+     */
+    public synchronized long[] snapshot(Resolution resolution, int buckets, long nowMillis) {
+        int r = resolution.ordinal();
+        int size = Math.max(0, Math.min(buckets, resolution.buckets));
+        long[] result = new long[size];
+        long last = Math.floorDiv(nowMillis, resolution.millis);
+        for (int i = 0; i < size; i++) {
+            long period = last - size + 1 + i;
+            int slot = (int) Math.floorMod(period, (long) resolution.buckets);
+            if (periods[r][slot] == period) {
+                result[i] = counts[r][slot];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Total of the last buckets at a resolution
+     *
+     * @see #snapshot(Resolution, int, long)
+     */
+    public long sum(Resolution resolution, int buckets, long nowMillis) {
+        long total = 0;
+        for (long count : snapshot(resolution, buckets, nowMillis)) {
+            total += count;
+        }
+        return total;
+    }
+
+    public synchronized void clear() {
+        for (int r = 0; r < RESOLUTIONS.length; r++) {
+            Arrays.fill(counts[r], 0);
+            Arrays.fill(periods[r], Long.MIN_VALUE);
+        }
+        Arrays.fill(latest, Long.MIN_VALUE / 2);
+    }
+}
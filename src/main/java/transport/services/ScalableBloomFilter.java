@@ -0,0 +1,172 @@
+package transport.services;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent Bloom filter of int keys that grows as keys are added. When the
+ * current layer reaches its capacity a new layer, twice as large and with half
+ * the false positive rate, is added, so the overall false positive rate stays
+ * below twice the configured one however many keys are added. Bits are set with
+ * CAS operations, so adds and lookups never block.
+ */
+public class ScalableBloomFilter {
+
+    private static final double TIGHTENING_RATIO = 0.5;
+
+    private final double falsePositiveRate;
+    private final List<Layer> layers = new CopyOnWriteArrayList<>();
+    private volatile Layer current;
+
+    /**
+     * @param initialCapacity Number of keys the first layer is sized for
+     * @param falsePositiveRate Target false positive rate of the first layer
+     */
+    public ScalableBloomFilter(int initialCapacity, double falsePositiveRate) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("La capacité doit être positive : " + initialCapacity);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Le taux de faux positifs doit être entre 0 et 1 : " + falsePositiveRate);
+        }
+        this.falsePositiveRate = falsePositiveRate;
+        current = new Layer(initialCapacity, falsePositiveRate);
+        layers.add(current);
+    }
+
+    public void add(int key) {
+        Layer layer = current;
+        if (layer.count.get() >= layer.capacity) {
+            layer = grow(layer);
+        }
+        layer.add(key);
+    }
+
+    /**
+     * @return false if the key was certainly never added
+     */
+    public boolean mightContain(int key) {
+        for (Layer layer : layers) {
+            if (layer.mightContain(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Configured false positive rate of the first layer
+     */
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * Estimated false positive rate given the keys added so far
+     */
+    public double getExpectedFalsePositiveRate() {
+        double none = 1.0;
+        for (Layer layer : layers) {
+            none *= 1.0 - layer.expectedFalsePositiveRate();
+        }
+        return 1.0 - none;
+    }
+
+    public long getApproximateCount() {
+        long count = 0;
+        for (Layer layer : layers) {
+            count += layer.count.get();
+        }
+        return count;
+    }
+
+    public long getSizeInBits() {
+        long bits = 0;
+        for (Layer layer : layers) {
+            bits += layer.bitCount;
+        }
+        return bits;
+    }
+
+    private synchronized Layer grow(Layer full) {
+        if (current == full) {
+            Layer next = new Layer(full.capacity * 2L, full.falsePositiveRate * TIGHTENING_RATIO);
+            layers.add(next);
+            current = next;
+        }
+        return current;
+    }
+
+    private static final class Layer {
+
+        final long capacity;
+        final double falsePositiveRate;
+        final long bitCount;
+        final int hashCount;
+        final AtomicLongArray words;
+        final AtomicLong count = new AtomicLong();
+
+        Layer(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            long bits = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            int wordCount = (int) Math.min(Integer.MAX_VALUE - 8, (bits + 63) >>> 6);
+            this.bitCount = (long) wordCount << 6;
+            this.hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+            this.words = new AtomicLongArray(wordCount);
+        }
+
+        void add(int key) {
+            long h1 = mix(key);
+            long h2 = mix(h1) | 1;
+            boolean changed = false;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                changed |= setBit(bit);
+            }
+            if (changed) {
+                count.incrementAndGet();
+            }
+        }
+
+        boolean mightContain(int key) {
+            long h1 = mix(key);
+            long h2 = mix(h1) | 1;
+            for (int i = 0; i < hashCount; i++) {
+                long bit = Math.floorMod(h1 + i * h2, bitCount);
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double expectedFalsePositiveRate() {
+            return Math.pow(1 - Math.exp(-(double) hashCount * count.get() / bitCount), hashCount);
+        }
+
+        private boolean setBit(long bit) {
+            int index = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            while (true) {
+                long word = words.get(index);
+                if ((word & mask) != 0) {
+                    return false;
+                }
+                if (words.compareAndSet(index, word, word | mask)) {
+                    return true;
+                }
+            }
+        }
+
+        // SplitMix64 finalizer
+        private static long mix(long z) {
+            z += 0x9E3779B97F4A7C15L;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package transport.services;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks selected by the hash of a key. Operations on the same key
+ * always serialize while operations on different keys only contend when their
+ * keys fall on the same stripe. Each stripe counts how many acquisitions had to
+ * wait for another thread.
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] locks;
+    private final AtomicLongArray contended;
+    private final int mask;
+
+    /**
+     * @param stripes The requested number of stripes, rounded up to a power of two
+     */
+    public StripedLock(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("Le nombre de verrous doit être positif : " + stripes);
+        }
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) {
+            size <<= 1;
+        }
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        contended = new AtomicLongArray(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Default stripe count: four stripes per available core
+     */
+    public static int defaultStripes() {
+        return Runtime.getRuntime().availableProcessors() * 4;
+    }
+
+    /**
+     * Acquires the lock guarding the given key. The caller must release it
+     * with {@link ReentrantLock#unlock()} in a finally block.
+     */
+    public ReentrantLock lock(Object key) {
+        int stripe = stripeFor(key);
+        ReentrantLock lock = locks[stripe];
+        if (!lock.tryLock()) {
+            contended.incrementAndGet(stripe);
+            lock.lock();
+        }
+        return lock;
+    }
+
+    public int stripeFor(Object key) {
+        int h = key != null ? key.hashCode() : 0;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public int getStripes() {
+        return locks.length;
+    }
+
+    /**
+     * Returns, for each stripe, the number of acquisitions that had to wait
+     */
+    public long[] getContentionCounts() {
+        long[] counts = new long[locks.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = contended.get(i);
+        }
+        return counts;
+    }
+}
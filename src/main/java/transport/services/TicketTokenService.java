@@ -0,0 +1,178 @@
+package transport.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import transport.core.CartePersonnelle;
+import transport.core.DayClock;
+import transport.core.Ticket;
+import transport.core.TitreTransport;
+
+/**
+ * Issues and verifies compact self-validating tokens for titres. A token holds
+ * the titre id, its purchase day and its type, followed by a truncated
+ * HMAC-SHA256 of those fields. Authenticity and same-day validity of a ticket
+ * are checked from the token alone; the titre is then looked up by id, so that
+ * tokens of deleted titres are refused, and the "already used" check goes to
+ * the used-ticket set. Cartes are renewed in place, so their expiration date
+ * is not in the token but read from the carte.
+ */
+public class TicketTokenService {
+
+    private static final Logger LOGGER = Logger.getLogger(TicketTokenService.class.getName());
+    private static final String DATA_DIRECTORY = "data";
+    private static final String KEY_FILE = DATA_DIRECTORY + "/ticket_token.key";
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final int PAYLOAD_LENGTH = 9;
+    private static final int SIGNATURE_LENGTH = 16;
+
+    private static final byte TYPE_TICKET = 0;
+    private static final byte TYPE_CARTE = 1;
+
+    public enum Verification {
+        VALID,
+        MALFORMED,
+        INVALID_SIGNATURE,
+        EXPIRED,
+        ALREADY_USED
+    }
+
+    private final TitreTransportService titreService;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    public TicketTokenService(TitreTransportService titreService) {
+        this(titreService, loadOrCreateKey());
+    }
+
+    public TicketTokenService(TitreTransportService titreService, byte[] secret) {
+        this.titreService = titreService;
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    /**
+     * Builds the signed token of a titre
+     */
+    public String issue(TitreTransport titre) {
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_LENGTH);
+        payload.putInt(titre.getCurrentId());
+        payload.putInt((int) titre.getDateAchat().toLocalDate().toEpochDay());
+        payload.put(titre instanceof CartePersonnelle ? TYPE_CARTE : TYPE_TICKET);
+        byte[] bytes = payload.array();
+
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(bytes) + "." + encoder.encodeToString(sign(bytes));
+    }
+
+    /**
+     * Verifies a token: signature, then same-day validity and the used-ticket
+     * set for tickets, or the current expiration date for cartes, a valid
+     * carte being recorded as validated today. A titre that no longer exists,
+     * or whose id now belongs to another titre, counts as expired.
+     */
+    public Verification verify(String token) {
+        byte[] payload;
+        byte[] signature;
+        try {
+            int dot = token.indexOf('.');
+            if (dot < 0) {
+                return Verification.MALFORMED;
+            }
+            Base64.Decoder decoder = Base64.getUrlDecoder();
+            payload = decoder.decode(token.substring(0, dot));
+            signature = decoder.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return Verification.MALFORMED;
+        }
+        if (payload.length != PAYLOAD_LENGTH || signature.length != SIGNATURE_LENGTH) {
+            return Verification.MALFORMED;
+        }
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            return Verification.INVALID_SIGNATURE;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int titreId = buffer.getInt();
+        long purchaseDay = buffer.getInt();
+        byte type = buffer.get();
+        if (type != TYPE_CARTE && purchaseDay != DayClock.getDefault().today()) {
+            return Verification.EXPIRED;
+        }
+        // The titre must still exist and be the one signed: a deleted titre's
+        // id may be given to another one after a restart
+        TitreTransport titre = titreService.getTitreById(titreId);
+        boolean expectedType = type == TYPE_CARTE ? titre instanceof CartePersonnelle : titre instanceof Ticket;
+        if (!expectedType || titre.getDateAchat().toLocalDate().toEpochDay() != purchaseDay) {
+            return Verification.EXPIRED;
+        }
+        if (type == TYPE_CARTE) {
+            // A carte is not used up: verifying it is its validation
+            boolean valid = titreService.validateCarte((CartePersonnelle) titre, DayClock.getDefault().todayDate());
+            return valid ? Verification.VALID : Verification.EXPIRED;
+        }
+        return titreService.isTicketUsed(titreId) ? Verification.ALREADY_USED : Verification.VALID;
+    }
+
+    /**
+     * Returns the titre id carried by a token, without verifying it
+     */
+    public static int titreIdOf(String token) {
+        int dot = token.indexOf('.');
+        byte[] payload = Base64.getUrlDecoder().decode(dot < 0 ? token : token.substring(0, dot));
+        return ByteBuffer.wrap(payload).getInt();
+    }
+
+    private byte[] sign(byte[] payload) {
+        Mac mac = macs.get();
+        return Arrays.copyOf(mac.doFinal(payload), SIGNATURE_LENGTH);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC indisponible", e);
+        }
+    }
+
+    /**
+     * Reads the signing key, creating a random one on first use
+     */
+    private static byte[] loadOrCreateKey() {
+        File file = new File(KEY_FILE);
+        try {
+            if (file.exists()) {
+                return Base64.getDecoder().decode(Files.readString(file.toPath(), StandardCharsets.US_ASCII).trim());
+            }
+            byte[] secret = new byte[KEY_LENGTH];
+            new SecureRandom().nextBytes(secret);
+            File directory = new File(DATA_DIRECTORY);
+            if (!directory.exists() && !directory.mkdirs()) {
+                LOGGER.severe("Failed to create data directory: " + DATA_DIRECTORY);
+            }
+            Files.writeString(file.toPath(), Base64.getEncoder().encodeToString(secret), StandardCharsets.US_ASCII);
+            LOGGER.info("Generated a new ticket signing key");
+            return secret;
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.log(Level.SEVERE, "Error reading ticket signing key", e);
+            throw new IllegalStateException("Clé de signature des tickets illisible : " + KEY_FILE, e);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package transport.services;
+
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical hashed timing wheel. Time is a count of ticks whose length the
+ * owner chooses (epoch days, minutes...). The first level has one slot per tick
+ * for the next 64 ticks, and every level above covers 64 times the span of the
+ * one below. Scheduling and cancelling are O(1); advancing by one tick fires
+ * the due slot and, once per lap of a level, moves the next slot of the level
+ * above down. Each timeout is therefore touched a bounded number of times, and
+ * nothing scans every entry.
+ * <p>
+ * Not thread safe: the owner serializes access.
+ */
+class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * A scheduled task, usable to cancel it
+     */
+    static final class Timeout<T> {
+
+        private final T task;
+        private final long deadline;
+        private Timeout<T> prev;
+        private Timeout<T> next;
+
+        private Timeout(T task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        T getTask() {
+            return task;
+        }
+
+        long getDeadline() {
+            return deadline;
+        }
+
+        boolean isPending() {
+            return prev != null;
+        }
+    }
+
+    // Each slot is a circular list headed by a sentinel
+    private final Timeout<T>[][] slots;
+    private long currentTick;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(long startTick) {
+        slots = new Timeout[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timeout<T> sentinel = new Timeout<>(null, 0);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                slots[level][slot] = sentinel;
+            }
+        }
+        currentTick = startTick;
+    }
+
+    /**
+     * @return The timeout, or null if the deadline is not after the current tick
+     */
+    Timeout<T> schedule(T task, long deadline) {
+        if (deadline <= currentTick) {
+            return null;
+        }
+        Timeout<T> timeout = new Timeout<>(task, deadline);
+        place(timeout);
+        size++;
+        return timeout;
+    }
+
+    boolean cancel(Timeout<T> timeout) {
+        if (timeout == null || !timeout.isPending()) {
+            return false;
+        }
+        unlink(timeout);
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances to the given tick, passing every task that falls due to the
+     * consumer in deadline order. Going back in time does nothing.
+     */
+    void advanceTo(long tick, Consumer<T> expired) {
+        while (currentTick < tick) {
+            currentTick++;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level, (int) (currentTick >>> (SLOT_BITS * level)) & MASK);
+                }
+            }
+            Timeout<T> head = slots[0][(int) currentTick & MASK];
+            while (head.next != head) {
+                Timeout<T> timeout = head.next;
+                unlink(timeout);
+                size--;
+                expired.accept(timeout.task);
+            }
+        }
+    }
+
+    long getCurrentTick() {
+        return currentTick;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Moves the timeouts of a higher level slot to the levels below
+     */
+    private void cascade(int level, int slot) {
+        // Detach the list first: far timeouts may go back to the same slot
+        Timeout<T> head = slots[level][slot];
+        if (head.next == head) {
+            return;
+        }
+        Timeout<T> timeout = head.next;
+        head.prev.next = null;
+        head.next = head;
+        head.prev = head;
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            place(timeout);
+            timeout = next;
+        }
+    }
+
+    private void place(Timeout<T> timeout) {
+        long delta = timeout.deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        Timeout<T> head = slots[level][(int) (timeout.deadline >>> (SLOT_BITS * level)) & MASK];
+        timeout.prev = head.prev;
+        timeout.next = head;
+        head.prev.next = timeout;
+        head.prev = timeout;
+    }
+
+    private void unlink(Timeout<T> timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+}
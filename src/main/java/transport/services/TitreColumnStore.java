@@ -0,0 +1,428 @@
+package transport.services;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import transport.core.CartePersonnelle;
+import transport.core.Personne;
+import transport.core.TitreTransport;
+import transport.core.TypeCarte;
+
+/**
+ * Read-optimized columnar copy of the titres for analytics. Each attribute is
+ * a primitive array indexed by row: purchase time in epoch seconds (local time
+ * taken as UTC), price, type and personne index, plus the payment mode. The
+ * store follows the titre service through its listener. Aggregations split the
+ * rows into ranges summed in parallel on the fork/join pool, and only read
+ * primitive arrays. Birth dates are read from the personne service at the
+ * start of each aggregation, once per personne, so edits to a personne show up
+ * in the next result.
+ */
+public class TitreColumnStore {
+
+    /**
+     * Value of the type column for tickets; cartes store 1 + the TypeCarte
+     * ordinal, or {@link #TYPE_CARTE_UNKNOWN}
+     */
+    public static final int TYPE_TICKET = 0;
+    public static final int TYPE_CARTE_UNKNOWN = TypeCarte.values().length + 1;
+    /**
+     * Value of the mode column for titres without a payment mode; others store
+     * 1 + the ModeDePaiement ordinal
+     */
+    public static final int MODE_UNKNOWN = 0;
+
+    private static final int LEAF_ROWS = 16_384;
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int SECONDS_PER_DAY = 86_400;
+
+    /**
+     * Maps a row to its group, or to -1 to leave it out
+     */
+    @FunctionalInterface
+    public interface RowKey {
+
+        int groupOf(Columns columns, int row);
+    }
+
+    @FunctionalInterface
+    public interface RowValue {
+
+        long valueOf(Columns columns, int row);
+    }
+
+    /**
+     * Read-only view of the columns during an aggregation
+     */
+    public static final class Columns {
+
+        private final long[] purchaseEpochSeconds;
+        private final int[] prices;
+        private final byte[] types;
+        private final byte[] modes;
+        private final int[] personIndexes;
+        private final int[] personBirthEpochDays;
+
+        private Columns(TitreColumnStore store, int[] personBirthEpochDays) {
+            this.purchaseEpochSeconds = store.purchaseEpochSeconds;
+            this.prices = store.prices;
+            this.types = store.types;
+            this.modes = store.modes;
+            this.personIndexes = store.personIndexes;
+            this.personBirthEpochDays = personBirthEpochDays;
+        }
+
+        public long purchaseEpochSecond(int row) {
+            return purchaseEpochSeconds[row];
+        }
+
+        public int purchaseEpochDay(int row) {
+            return (int) Math.floorDiv(purchaseEpochSeconds[row], SECONDS_PER_DAY);
+        }
+
+        public int prix(int row) {
+            return prices[row];
+        }
+
+        public int type(int row) {
+            return types[row];
+        }
+
+        public int mode(int row) {
+            return modes[row];
+        }
+
+        public int personIndex(int row) {
+            return personIndexes[row];
+        }
+
+        /**
+         * Age of the personne on the purchase day, or -1 if unknown
+         */
+        public int ageAtPurchase(int row) {
+            int birth = personBirthEpochDays[personIndexes[row]];
+            return birth == Integer.MIN_VALUE ? -1 : yearsBetween(birth, purchaseEpochDay(row));
+        }
+    }
+
+    private final PersonneService personneService;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TitreIdMap rowsById = new TitreIdMap();
+    private int size;
+    private int[] ids = new int[DEFAULT_CAPACITY];
+    private long[] purchaseEpochSeconds = new long[DEFAULT_CAPACITY];
+    private int[] prices = new int[DEFAULT_CAPACITY];
+    private byte[] types = new byte[DEFAULT_CAPACITY];
+    private byte[] modes = new byte[DEFAULT_CAPACITY];
+    private int[] personIndexes = new int[DEFAULT_CAPACITY];
+
+    // Dictionary of the personnes
+    private final Map<UUID, Integer> personIndexById = new HashMap<>();
+    private UUID[] personIds = new UUID[DEFAULT_CAPACITY];
+
+    public TitreColumnStore(TitreTransportService titreService, PersonneService personneService) {
+        this.personneService = personneService;
+        titreService.addListener(new TitreTransportListener() {
+            @Override
+            public void onIssued(TitreTransport titre) {
+                add(titre);
+            }
+
+            @Override
+            public void onRemoved(TitreTransport titre) {
+                remove(titre.getCurrentId());
+            }
+        }, true);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sums a value per group over all rows, in parallel
+     *
+     * @param groups The number of groups; keys must be below it
+     * @return The sum of each group
+     */
+    public long[] aggregate(int groups, RowKey key, RowValue value) {
+        lock.readLock().lock();
+        try {
+            Columns columns = new Columns(this, personBirthEpochDays());
+            return ForkJoinPool.commonPool().invoke(new AggregateTask(columns, 0, size, groups, key, value));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Counts the rows of each group, in parallel
+     */
+    public long[] count(int groups, RowKey key) {
+        return aggregate(groups, key, (columns, row) -> 1);
+    }
+
+    /**
+     * Revenue of each month with sales, in DA
+     */
+    public SortedMap<YearMonth, Long> getRevenueByMonth() {
+        lock.readLock().lock();
+        try {
+            SortedMap<YearMonth, Long> result = new TreeMap<>();
+            if (size == 0) {
+                return result;
+            }
+            int first = Integer.MAX_VALUE;
+            int last = Integer.MIN_VALUE;
+            for (int row = 0; row < size; row++) {
+                int month = monthIndex((int) Math.floorDiv(purchaseEpochSeconds[row], SECONDS_PER_DAY));
+                first = Math.min(first, month);
+                last = Math.max(last, month);
+            }
+            int origin = first;
+            long[] sums = aggregate(last - first + 1,
+                    (columns, row) -> monthIndex(columns.purchaseEpochDay(row)) - origin,
+                    Columns::prix);
+            for (int i = 0; i < sums.length; i++) {
+                if (sums[i] != 0) {
+                    result.put(YearMonth.of(Math.floorDiv(origin + i, 12), Math.floorMod(origin + i, 12) + 1), sums[i]);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Cartes sold per age band of their holder at purchase time, and TypeCarte
+     *
+     * @param bandYears Width of the age bands
+     * @return For each band, keyed by its lowest age, the count per TypeCarte
+     */
+    public SortedMap<Integer, Map<TypeCarte, Long>> getCarteMixByAgeBand(int bandYears) {
+        if (bandYears <= 0) {
+            throw new IllegalArgumentException("La largeur des tranches doit être positive : " + bandYears);
+        }
+        int bands = 150 / bandYears + 1;
+        int typeCount = TypeCarte.values().length;
+        long[] counts = count(bands * typeCount, (columns, row) -> {
+            int type = columns.type(row);
+            if (type == TYPE_TICKET || type == TYPE_CARTE_UNKNOWN) {
+                return -1;
+            }
+            int age = columns.ageAtPurchase(row);
+            if (age < 0) {
+                return -1;
+            }
+            return Math.min(age / bandYears, bands - 1) * typeCount + type - 1;
+        });
+        SortedMap<Integer, Map<TypeCarte, Long>> result = new TreeMap<>();
+        for (int band = 0; band < bands; band++) {
+            Map<TypeCarte, Long> mix = new EnumMap<>(TypeCarte.class);
+            long total = 0;
+            for (TypeCarte type : TypeCarte.values()) {
+                long count = counts[band * typeCount + type.ordinal()];
+                mix.put(type, count);
+                total += count;
+            }
+            if (total > 0) {
+                result.put(band * bandYears, mix);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Months since year 0, for grouping by month without LocalDate objects
+     */
+    public static int monthIndex(int epochDay) {
+        int[] date = civilFromDays(epochDay);
+        return date[0] * 12 + date[1] - 1;
+    }
+
+    private void add(TitreTransport titre) {
+        lock.writeLock().lock();
+        try {
+            if (rowsById.containsKey(titre.getCurrentId())) {
+                removeRow(rowsById.positionOf(titre.getCurrentId()));
+            }
+            if (size == ids.length) {
+                int capacity = size * 2;
+                ids = Arrays.copyOf(ids, capacity);
+                purchaseEpochSeconds = Arrays.copyOf(purchaseEpochSeconds, capacity);
+                prices = Arrays.copyOf(prices, capacity);
+                types = Arrays.copyOf(types, capacity);
+                modes = Arrays.copyOf(modes, capacity);
+                personIndexes = Arrays.copyOf(personIndexes, capacity);
+            }
+            int row = size++;
+            ids[row] = titre.getCurrentId();
+            purchaseEpochSeconds[row] = titre.getDateAchat().toEpochSecond(ZoneOffset.UTC);
+            prices[row] = titre.getPrixValue();
+            types[row] = (byte) typeOf(titre);
+            modes[row] = (byte) (titre.getModeDePaiement() != null
+                    ? titre.getModeDePaiement().ordinal() + 1 : MODE_UNKNOWN);
+            personIndexes[row] = personIndex(titre.getPersonneId());
+            rowsById.put(titre.getCurrentId(), titre, row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void remove(int id) {
+        lock.writeLock().lock();
+        try {
+            int row = rowsById.positionOf(id);
+            if (row >= 0) {
+                removeRow(row);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a row by moving the last row into it
+     */
+    private void removeRow(int row) {
+        rowsById.remove(ids[row]);
+        int last = --size;
+        if (row != last) {
+            ids[row] = ids[last];
+            purchaseEpochSeconds[row] = purchaseEpochSeconds[last];
+            prices[row] = prices[last];
+            types[row] = types[last];
+            modes[row] = modes[last];
+            personIndexes[row] = personIndexes[last];
+            rowsById.setPosition(ids[row], row);
+        }
+    }
+
+    private int personIndex(UUID personneId) {
+        Integer index = personIndexById.get(personneId);
+        if (index != null) {
+            return index;
+        }
+        int next = personIndexById.size();
+        if (next == personIds.length) {
+            personIds = Arrays.copyOf(personIds, next * 2);
+        }
+        personIds[next] = personneId;
+        personIndexById.put(personneId, next);
+        return next;
+    }
+
+    /**
+     * Current birth day of each indexed personne, Integer.MIN_VALUE if unknown
+     * or deleted. Called under the read lock.
+     */
+    private int[] personBirthEpochDays() {
+        int count = personIndexById.size();
+        int[] birthEpochDays = new int[count];
+        for (int i = 0; i < count; i++) {
+            Personne personne = personneService.getPersonneById(personIds[i]);
+            LocalDate birthDate = personne != null ? personne.getBirthDate() : null;
+            birthEpochDays[i] = birthDate != null ? (int) birthDate.toEpochDay() : Integer.MIN_VALUE;
+        }
+        return birthEpochDays;
+    }
+
+    private static int typeOf(TitreTransport titre) {
+        if (!(titre instanceof CartePersonnelle)) {
+            return TYPE_TICKET;
+        }
+        TypeCarte type = ((CartePersonnelle) titre).getType();
+        return type != null ? type.ordinal() + 1 : TYPE_CARTE_UNKNOWN;
+    }
+
+    private static int yearsBetween(int fromEpochDay, int toEpochDay) {
+        int[] from = civilFromDays(fromEpochDay);
+        int[] to = civilFromDays(toEpochDay);
+        int years = to[0] - from[0];
+        if (to[1] < from[1] || (to[1] == from[1] && to[2] < from[2])) {
+            years--;
+        }
+        return years;
+    }
+
+    /**
+     * Year, month and day of an epoch day in the proleptic Gregorian calendar
+     * (H. Hinnant's days_from_civil inverse)
+     */
+    private static int[] civilFromDays(int epochDay) {
+        long z = epochDay + 719_468L;
+        long era = Math.floorDiv(z, 146_097);
+        long doe = z - era * 146_097;
+        long yoe = (doe - doe / 1460 + doe / 36_524 - doe / 146_096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        int day = (int) (doy - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yoe + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[] {year, month, day};
+    }
+
+    /**
+     * Sums a range of rows, splitting it while it is larger than a leaf
+     */
+    private static class AggregateTask extends RecursiveTask<long[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Columns columns;
+        private final int from;
+        private final int to;
+        private final int groups;
+        private final RowKey key;
+        private final RowValue value;
+
+        AggregateTask(Columns columns, int from, int to, int groups, RowKey key, RowValue value) {
+            this.columns = columns;
+            this.from = from;
+            this.to = to;
+            this.groups = groups;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= LEAF_ROWS) {
+                long[] sums = new long[groups];
+                for (int row = from; row < to; row++) {
+                    int group = key.groupOf(columns, row);
+                    if (group >= 0) {
+                        sums[group] += value.valueOf(columns, row);
+                    }
+                }
+                return sums;
+            }
+            int middle = (from + to) >>> 1;
+            AggregateTask left = new AggregateTask(columns, from, middle, groups, key, value);
+            left.fork();
+            long[] sums = new AggregateTask(columns, middle, to, groups, key, value).compute();
+            long[] leftSums = left.join();
+            for (int i = 0; i < groups; i++) {
+                sums[i] += leftSums[i];
+            }
+            return sums;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package transport.services;
+
+import java.util.function.Consumer;
+
+import transport.core.ModeDePaiement;
+import transport.core.Personne;
+import transport.core.TitreTransport;
+
+/**
+ * Point-of-sale event stored in a pre-allocated slot of a
+ * {@link TitreEventPipeline}. Slots are reused, so handlers and callbacks must
+ * copy whatever they need before returning.
+ */
+public class TitreEvent {
+
+    public enum Kind {
+        SALE_TICKET,
+        SALE_CARTE,
+        VALIDATION
+    }
+
+    private Kind kind;
+    private Personne personne;
+    private ModeDePaiement modeDePaiement;
+    private int titreId;
+    private Consumer<TitreEvent> callback;
+
+    // Outcome, filled by the store stage
+    private TitreTransport titre;
+    private boolean success;
+    private String error;
+
+    void setSale(Kind kind, Personne personne, ModeDePaiement modeDePaiement, Consumer<TitreEvent> callback) {
+        reset();
+        this.kind = kind;
+        this.personne = personne;
+        this.modeDePaiement = modeDePaiement;
+        this.callback = callback;
+    }
+
+    void setValidation(int titreId, Consumer<TitreEvent> callback) {
+        reset();
+        this.kind = Kind.VALIDATION;
+        this.titreId = titreId;
+        this.callback = callback;
+    }
+
+    void succeed(TitreTransport titre) {
+        this.titre = titre;
+        this.success = true;
+    }
+
+    void fail(String error) {
+        this.success = false;
+        this.error = error;
+    }
+
+    /**
+     * Releases the references held by the slot once the event is processed
+     */
+    void reset() {
+        kind = null;
+        personne = null;
+        modeDePaiement = null;
+        titreId = 0;
+        callback = null;
+        titre = null;
+        success = false;
+        error = null;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public Personne getPersonne() {
+        return personne;
+    }
+
+    public ModeDePaiement getModeDePaiement() {
+        return modeDePaiement;
+    }
+
+    public int getTitreId() {
+        return titreId;
+    }
+
+    Consumer<TitreEvent> getCallback() {
+        return callback;
+    }
+
+    public TitreTransport getTitre() {
+        return titre;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
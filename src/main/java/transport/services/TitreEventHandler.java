@@ -0,0 +1,16 @@
+package transport.services;
+
+/**
+ * Stage of a {@link TitreEventPipeline}. Stages are called in registration
+ * order, from the single consumer thread, for every event.
+ */
+public interface TitreEventHandler {
+
+    /**
+     * @param event The event, only valid for the duration of the call
+     * @param sequence The sequence number of the event in the pipeline
+     * @param endOfBatch true for the last event currently available, so that
+     * expensive work (like persisting) can be done once per batch
+     */
+    void onEvent(TitreEvent event, long sequence, boolean endOfBatch);
+}
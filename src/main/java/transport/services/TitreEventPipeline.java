@@ -0,0 +1,274 @@
+package transport.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import transport.core.ModeDePaiement;
+import transport.core.Personne;
+
+/**
+ * Ring buffer carrying sale and validation events from many producers (tills,
+ * vending machines) to a single consumer thread, in the style of the LMAX
+ * Disruptor. Slots are allocated once; producers claim a sequence with a CAS,
+ * fill the slot and flag it as published. The consumer applies the handlers in
+ * order to each event and reports the end of every batch, so persistence can
+ * happen once per batch instead of once per event. Producer callbacks run after
+ * the whole batch went through every stage.
+ * <p>
+ * Only the ring is lock-free. The store is shared with the direct callers of
+ * the service, so applying an event still takes the service lock, for the
+ * in-memory change only; the file is written once per batch, outside of it.
+ * Once closed, the pipeline rejects new events.
+ */
+public class TitreEventPipeline implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(TitreEventPipeline.class.getName());
+    private static final long IDLE_PARK_NANOS = 50_000;
+    // Set in claimed once the pipeline is closed, so that no claim gets past it
+    private static final long CLOSED = 1L << 62;
+
+    private final TitreEvent[] slots;
+    private final AtomicIntegerArray published;
+    private final int mask;
+    private final int shift;
+    private final List<TitreEventHandler> handlers;
+
+    // Number of sequences claimed, with the CLOSED bit once closed
+    private final AtomicLong claimed = new AtomicLong();
+    // Last sequence fully processed by the consumer
+    private final AtomicLong consumed = new AtomicLong(-1);
+
+    private final Thread consumer;
+    private volatile boolean running;
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     * @param handlers The stages applied in order to every event
+     */
+    public TitreEventPipeline(int capacity, List<TitreEventHandler> handlers) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("La capacité doit être positive : " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new TitreEvent[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new TitreEvent();
+        }
+        published = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        shift = Integer.numberOfTrailingZeros(size);
+        this.handlers = Collections.unmodifiableList(new ArrayList<>(handlers));
+
+        consumer = new Thread(this::consume, "titre-event-pipeline");
+        consumer.setDaemon(true);
+    }
+
+    /**
+     * Builds a pipeline applying events to the service store, then persisting
+     * the service once per batch
+     */
+    public static TitreEventPipeline forService(TitreTransportService service, int capacity) {
+        List<TitreEventHandler> stages = new ArrayList<>();
+        stages.add(service::applyEvent);
+        stages.add((event, sequence, endOfBatch) -> {
+            if (endOfBatch) {
+                service.flush();
+            }
+        });
+        return new TitreEventPipeline(capacity, stages);
+    }
+
+    public void start() {
+        running = true;
+        consumer.start();
+    }
+
+    /**
+     * Publishes a sale, waiting while the ring is full
+     *
+     * @throws IllegalStateException if the pipeline is closed
+     * @param carte true for a CartePersonnelle, false for a Ticket
+     * @param callback Called from the consumer thread once the sale is applied,
+     * may be null
+     */
+    public long publishSale(Personne personne, ModeDePaiement modeDePaiement, boolean carte,
+            Consumer<TitreEvent> callback) {
+        long sequence = claim();
+        slots[(int) sequence & mask].setSale(saleKind(carte), personne, modeDePaiement, callback);
+        publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * Publishes a sale unless the ring is full
+     *
+     * @return false if the ring is full and the event was not published
+     * @throws IllegalStateException if the pipeline is closed
+     */
+    public boolean tryPublishSale(Personne personne, ModeDePaiement modeDePaiement, boolean carte,
+            Consumer<TitreEvent> callback) {
+        long sequence = tryClaim();
+        if (sequence < 0) {
+            return false;
+        }
+        slots[(int) sequence & mask].setSale(saleKind(carte), personne, modeDePaiement, callback);
+        publish(sequence);
+        return true;
+    }
+
+    /**
+     * Publishes the validation of a ticket, waiting while the ring is full
+     *
+     * @throws IllegalStateException if the pipeline is closed
+     */
+    public long publishValidation(int titreId, Consumer<TitreEvent> callback) {
+        long sequence = claim();
+        slots[(int) sequence & mask].setValidation(titreId, callback);
+        publish(sequence);
+        return sequence;
+    }
+
+    /**
+     * Publishes the validation of a ticket unless the ring is full
+     *
+     * @return false if the ring is full and the event was not published
+     * @throws IllegalStateException if the pipeline is closed
+     */
+    public boolean tryPublishValidation(int titreId, Consumer<TitreEvent> callback) {
+        long sequence = tryClaim();
+        if (sequence < 0) {
+            return false;
+        }
+        slots[(int) sequence & mask].setValidation(titreId, callback);
+        publish(sequence);
+        return true;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Number of events published but not processed yet
+     */
+    public long getBacklog() {
+        return lastClaimed() - consumed.get();
+    }
+
+    /**
+     * Stops accepting events, then waits until those already claimed are
+     * processed. Producers waiting for room in the ring give up.
+     */
+    @Override
+    public void close() {
+        long state;
+        do {
+            state = claimed.get();
+        } while ((state & CLOSED) == 0 && !claimed.compareAndSet(state, state | CLOSED));
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static TitreEvent.Kind saleKind(boolean carte) {
+        return carte ? TitreEvent.Kind.SALE_CARTE : TitreEvent.Kind.SALE_TICKET;
+    }
+
+    private long claim() {
+        long sequence;
+        while ((sequence = tryClaim()) < 0) {
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+        }
+        return sequence;
+    }
+
+    private long tryClaim() {
+        while (true) {
+            long state = claimed.get();
+            if ((state & CLOSED) != 0) {
+                throw new IllegalStateException("Le pipeline est arrêté");
+            }
+            // The slot is free once the consumer processed the event one lap before
+            if (state - slots.length > consumed.get()) {
+                return -1;
+            }
+            if (claimed.compareAndSet(state, state + 1)) {
+                return state;
+            }
+        }
+    }
+
+    private long lastClaimed() {
+        return (claimed.get() & ~CLOSED) - 1;
+    }
+
+    private void publish(long sequence) {
+        published.set((int) sequence & mask, (int) (sequence >>> shift));
+        LockSupport.unpark(consumer);
+    }
+
+    private boolean isPublished(long sequence) {
+        return published.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    private void consume() {
+        long next = consumed.get() + 1;
+        while (running || next <= lastClaimed()) {
+            if (!isPublished(next)) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            long last = next;
+            while (last - next < slots.length - 1 && isPublished(last + 1)) {
+                last++;
+            }
+            for (long sequence = next; sequence <= last; sequence++) {
+                TitreEvent event = slots[(int) sequence & mask];
+                boolean endOfBatch = sequence == last;
+                for (TitreEventHandler handler : handlers) {
+                    try {
+                        handler.onEvent(event, sequence, endOfBatch);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.SEVERE, "Error processing event " + sequence, e);
+                    }
+                }
+            }
+            // Producers are notified once the whole batch went through every stage
+            for (long sequence = next; sequence <= last; sequence++) {
+                TitreEvent event = slots[(int) sequence & mask];
+                notifyProducer(event);
+                event.reset();
+            }
+            consumed.set(last);
+            next = last + 1;
+        }
+    }
+
+    private void notifyProducer(TitreEvent event) {
+        Consumer<TitreEvent> callback = event.getCallback();
+        if (callback != null) {
+            try {
+                callback.accept(event);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Error in event callback", e);
+            }
+        }
+    }
+}
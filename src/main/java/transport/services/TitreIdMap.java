@@ -0,0 +1,176 @@
+package transport.services;
+
+import java.util.Arrays;
+
+import transport.core.TitreTransport;
+
+/**
+ * Open-addressing hash map from a titre's currentId to the titre itself and its
+ * position in the service list. Keys are stored as primitive ints (no boxing),
+ * collisions are resolved with linear probing and removals use backward shift
+ * deletion so no tombstones are left behind.
+ */
+class TitreIdMap {
+
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private TitreTransport[] values;
+    private int[] positions;
+    private int size;
+    private int mask;
+
+    TitreIdMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TitreIdMap(int expectedSize) {
+        int capacity = tableSizeFor((int) Math.ceil(Math.max(expectedSize, 1) / LOAD_FACTOR));
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the titre registered under the given id, or null if there is none
+     */
+    TitreTransport get(int id) {
+        int slot = findSlot(id);
+        return slot < 0 ? null : values[slot];
+    }
+
+    /**
+     * Returns the list position of the titre registered under the given id, or
+     * -1 if there is none
+     */
+    int positionOf(int id) {
+        int slot = findSlot(id);
+        return slot < 0 ? -1 : positions[slot];
+    }
+
+    boolean containsKey(int id) {
+        return findSlot(id) >= 0;
+    }
+
+    /**
+     * Registers (or replaces) the titre stored under the given id
+     */
+    void put(int id, TitreTransport titre, int position) {
+        if (titre == null) {
+            throw new IllegalArgumentException("La valeur ne peut pas être null");
+        }
+        int slot = indexFor(id);
+        while (values[slot] != null) {
+            if (keys[slot] == id) {
+                values[slot] = titre;
+                positions[slot] = position;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = id;
+        values[slot] = titre;
+        positions[slot] = position;
+        if (++size > keys.length * LOAD_FACTOR) {
+            resize(keys.length << 1);
+        }
+    }
+
+    /**
+     * Updates the list position of an existing entry
+     */
+    void setPosition(int id, int position) {
+        int slot = findSlot(id);
+        if (slot >= 0) {
+            positions[slot] = position;
+        }
+    }
+
+    /**
+     * Removes the entry stored under the given id
+     *
+     * @return the removed titre, or null if there was none
+     */
+    TitreTransport remove(int id) {
+        int slot = findSlot(id);
+        if (slot < 0) {
+            return null;
+        }
+        TitreTransport removed = values[slot];
+
+        // Backward shift: pull following entries of the cluster into the hole
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (values[next] != null) {
+            int home = indexFor(keys[next]);
+            // Move the entry if its home slot is not cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                positions[hole] = positions[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[hole] = null;
+        size--;
+        return removed;
+    }
+
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int findSlot(int id) {
+        int slot = indexFor(id);
+        while (values[slot] != null) {
+            if (keys[slot] == id) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private int indexFor(int id) {
+        // Fibonacci hashing spreads the sequential ids over the whole table
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        TitreTransport[] oldValues = values;
+        int[] oldPositions = positions;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = indexFor(oldKeys[i]);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                positions[slot] = oldPositions[i];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new TitreTransport[capacity];
+        positions = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int tableSizeFor(int n) {
+        int capacity = Integer.highestOneBit(Math.max(n - 1, 1)) << 1;
+        return Math.max(capacity, 16);
+    }
+}
@@ -0,0 +1,52 @@
+package transport.services;
+
+import java.time.LocalDate;
+
+import transport.core.CartePersonnelle;
+import transport.core.Ticket;
+import transport.core.TitreTransport;
+
+/**
+ * Receives the changes made to the titres of a {@link TitreTransportService}.
+ * Callbacks run while the service lock is held, in the order of the changes,
+ * and must not call back into the service's writing methods.
+ */
+public interface TitreTransportListener {
+
+    /**
+     * A titre was sold, or replaced by {@code saveTitre}
+     */
+    default void onIssued(TitreTransport titre) {
+    }
+
+    /**
+     * A titre was deleted, or is about to be replaced
+     */
+    default void onRemoved(TitreTransport titre) {
+    }
+
+    /**
+     * A ticket was validated
+     */
+    default void onUsed(Ticket ticket) {
+    }
+
+    /**
+     * A valid carte was shown at a gate on the given day. Cartes are not used
+     * up, so nothing changed in the store.
+     */
+    default void onCarteValidated(CartePersonnelle carte, LocalDate day) {
+    }
+
+    /**
+     * A carte expires in a few days and should be renewed
+     */
+    default void onRenewalReminder(CartePersonnelle carte) {
+    }
+
+    /**
+     * A carte reached its expiration date
+     */
+    default void onCarteExpired(CartePersonnelle carte) {
+    }
+}
@@ -1,25 +1,30 @@
 package transport.services;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Reader;
-import java.io.Writer;
 import java.lang.reflect.Type;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
@@ -28,10 +33,9 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
 
 import transport.core.CartePersonnelle;
+import transport.core.DayClock;
 import transport.core.ModeDePaiement;
 import transport.core.Personne;
 import transport.core.ReductionImpossibleException;
@@ -42,18 +46,80 @@ import transport.core.TypeCarte;
 /**
  * Service class to manage TitreTransport entities Handles JSON
  * serialization/deserialization and CRUD operations
+ * <p>
+ * Readers and the data file writer share an unmodifiable copy of the list,
+ * taken at most once per version. The copy fixes the set of titres but not
+ * their state: tickets are marked used and cartes renewed in place, so a long
+ * reader such as an export may see some titres change while it runs.
  */
 public class TitreTransportService {
 
     private static final Logger LOGGER = Logger.getLogger(TitreTransportService.class.getName());
     private static final String DATA_DIRECTORY = "data";
     private static final String TITRE_FILE = DATA_DIRECTORY + "/titres.json";
+    private static final double DEFAULT_USED_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final int USED_FILTER_MIN_CAPACITY = 1024;
+    private static final int RENEWAL_REMINDER_DAYS = 30;
+    // Ids index bit sets, so imported ids may only go this far past the known ones
+    private static final int MAX_IMPORTED_ID_GAP = 1 << 20;
     private List<TitreTransport> titres = new ArrayList<>();
+    private final TitreIdMap titresById = new TitreIdMap();
+    private final Map<UUID, List<TitreTransport>> titresByPersonne = new HashMap<>();
+    // Tickets bought on todayBucketDay, expired in bulk when the day rolls over
+    private final Set<Ticket> todayTickets = new LinkedHashSet<>();
+    private long todayBucketDay = DayClock.getDefault().today();
+    // Expiry and renewal reminder timers of the cartes, advanced with the day
+    private TimingWheel<CarteEvent> carteTimers = new TimingWheel<>(todayBucketDay);
+    private final Map<CartePersonnelle, List<TimingWheel.Timeout<CarteEvent>>> carteTimeouts = new IdentityHashMap<>();
+    // Ids of the used tickets, checked by gates without touching the titres
+    private final BitSet usedTicketIds = new BitSet();
+    // Lock-free front of usedTicketIds: a negative answer skips the locked lookup
+    private volatile ScalableBloomFilter usedTicketFilter;
+    private final double usedFilterFalsePositiveRate;
+    // Ticket sales and validations over the last hour, day and 30 days
+    private final RingTimeSeries ticketSales = new RingTimeSeries();
+    private final RingTimeSeries validations = new RingTimeSeries();
+    // Read-only copy of the list handed out to readers as is, dropped on every
+    // write and copied again on the next read
+    private volatile List<TitreTransport> snapshot;
+    // Version of the in-memory state, bumped by every change
+    private long version;
+    // Serializes the file writes, which happen outside the service lock
+    private final Object saveLock = new Object();
+    // Version last written to the file, guarded by saveLock
+    private long savedVersion;
     private final Gson gson;
-    private static  PersonneService personneService;
+    private final PersonneService personneService;
+    // Orders the issuances of a personne. It does not make issuance scale: the
+    // registration of every titre still takes the service lock, since
+    // listeners are called under it in the order of the changes.
+    private final StripedLock issuanceLocks;
+    private final List<TitreTransportListener> listeners = new CopyOnWriteArrayList<>();
 
     public TitreTransportService(PersonneService personneService) {
+        this(personneService, StripedLock.defaultStripes());
+    }
+
+    /**
+     * @param personneService The service resolving personnes
+     * @param lockStripes The number of per-personne issuance locks
+     */
+    public TitreTransportService(PersonneService personneService, int lockStripes) {
+        this(personneService, lockStripes, DEFAULT_USED_FILTER_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @param personneService The service resolving personnes
+     * @param lockStripes The number of per-personne issuance locks
+     * @param usedFilterFalsePositiveRate The target false positive rate of the
+     * used ticket filter
+     */
+    public TitreTransportService(PersonneService personneService, int lockStripes,
+            double usedFilterFalsePositiveRate) {
         this.personneService = personneService;
+        this.issuanceLocks = new StripedLock(lockStripes);
+        this.usedFilterFalsePositiveRate = usedFilterFalsePositiveRate;
+        this.usedTicketFilter = new ScalableBloomFilter(USED_FILTER_MIN_CAPACITY, usedFilterFalsePositiveRate);
 
         // Create custom GSON instance with type adapters
         gson = new GsonBuilder()
@@ -61,8 +127,6 @@ public class TitreTransportService {
                 .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
                 .registerTypeAdapter(UUID.class, new UUIDAdapter())
                 .registerTypeAdapter(TitreTransport.class, new TitreTransportAdapter())
-                .registerTypeAdapter(new TypeToken<ArrayList<TitreTransport>>() {
-                }.getType(), new TitreTransportListAdapter())
                 .setPrettyPrinting()
                 .create();
 
@@ -74,53 +138,192 @@ public class TitreTransportService {
 
         // Load existing data
         loadData();
+
+        // Remove the titres of deleted personnes
+        personneService.addDeletionListener(this::deleteTitresForPerson);
     }
 
     /**
      * Retrieves all TitreTransport entities
+     *
+     * @return An unmodifiable copy of the list, unaffected by later sales and
+     * deletions; the titres in it are the live records, so a ticket used or a
+     * carte renewed after the copy shows its new state
      */
     public List<TitreTransport> getAllTitres() {
-        return new ArrayList<>(titres);
+        List<TitreTransport> current = snapshot;
+        return current != null ? current : publishSnapshot();
+    }
+
+    /**
+     * Retrieves a specific TitreTransport by its currentId
+     *
+     * @param id The currentId of the titre
+     * @return The TitreTransport object or null if not found
+     */
+    public synchronized TitreTransport getTitreById(int id) {
+        return titresById.get(id);
+    }
+
+    /**
+     * Tells whether the ticket with the given id has been used. Most tickets
+     * presented are unused and are answered by the Bloom filter without taking
+     * the service lock; only possible positives go to the used ticket set.
+     */
+    public boolean isTicketUsed(int id) {
+        if (!usedTicketFilter.mightContain(id)) {
+            return false;
+        }
+        synchronized (this) {
+            return usedTicketIds.get(id);
+        }
+    }
+
+    /**
+     * Estimated false positive rate of the used ticket filter, i.e. the share
+     * of unused tickets whose check still goes to the used ticket set
+     */
+    public double getUsedTicketFilterFalsePositiveRate() {
+        return usedTicketFilter.getExpectedFalsePositiveRate();
+    }
+
+    /**
+     * Tickets sold over the last hour, day and 30 days, per second, minute and
+     * hour
+     */
+    public RingTimeSeries getTicketSalesSeries() {
+        return ticketSales;
+    }
+
+    /**
+     * Tickets used over the last hour, day and 30 days, per second, minute and
+     * hour. Only validations since the last load are counted, as use times are
+     * not persisted.
+     */
+    public RingTimeSeries getValidationSeries() {
+        return validations;
+    }
+
+    /**
+     * Retrieves the tickets bought today and not used yet, without scanning
+     * the history
+     */
+    public synchronized List<Ticket> getTicketsValidToday() {
+        rollDay();
+        List<Ticket> valid = new ArrayList<>(todayTickets.size());
+        for (Ticket ticket : todayTickets) {
+            if (!ticket.isUsed()) {
+                valid.add(ticket);
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Rolls the day over if midnight has passed: yesterday's tickets expire and
+     * the carte timers due are fired. Readers and writers do this on their
+     * own; runtimes call it periodically so that events fire on time.
+     */
+    public synchronized void checkDay() {
+        rollDay();
+    }
+
+    /**
+     * Extends a carte by one validity period, counted from its expiration date
+     * or from today if it has already expired
+     */
+    public void renewCarte(CartePersonnelle carte) {
+        synchronized (this) {
+            if (titresById.get(carte.getCurrentId()) != carte) {
+                throw new IllegalArgumentException("Carte introuvable : " + carte.getCurrentId());
+            }
+            rollDay();
+            LocalDate today = DayClock.getDefault().todayDate();
+            LocalDate from = carte.getDateExpiration().isAfter(today) ? carte.getDateExpiration() : today;
+            cancelCarteTimers(carte);
+            carte.setDateExpiration(from.plusYears(CartePersonnelle.DUREE_VALIDITE_ANNEES));
+            scheduleCarteTimers(carte);
+            changed();
+        }
+        saveData();
     }
 
     /**
      * Retrieves TitreTransport entities for a specific person
      */
-    public List<TitreTransport> getTitresForPerson(UUID personneId) {
-        return titres.stream()
-                .filter(t -> t.getPersonneId().equals(personneId))
-                .collect(Collectors.toList());
+    public synchronized List<TitreTransport> getTitresForPerson(UUID personneId) {
+        return new ArrayList<>(titresByPersonne.getOrDefault(personneId, Collections.emptyList()));
     }
 
     /**
      * Creates a new Ticket
      */
     public Ticket createTicket(Personne personne, ModeDePaiement modeDePaiement) {
-        Ticket ticket = new Ticket(personne, LocalDateTime.now());
-        titres.add(ticket);
-        saveData();
-        return ticket;
+        return issueTicket(personne, modeDePaiement, true);
     }
 
     /**
      * Creates a new CartePersonnelle
      */
     public CartePersonnelle createCarte(Personne personne, ModeDePaiement modeDePaiement) throws ReductionImpossibleException {
-        CartePersonnelle carte = new CartePersonnelle(personne);
-        titres.add(carte);
-        saveData();
-        return carte;
+        return issueCarte(personne, modeDePaiement, true);
+    }
+
+    /**
+     * Registers a listener notified of every titre sold and ticket used
+     */
+    public void addListener(TitreTransportListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Registers a listener and, atomically with it, passes every titre already
+     * in the store to its {@code onIssued}, so that it can build its state
+     * without missing or counting twice a concurrent sale
+     */
+    public synchronized void addListener(TitreTransportListener listener, boolean replayExisting) {
+        if (replayExisting) {
+            for (TitreTransport titre : titres) {
+                listener.onIssued(titre);
+            }
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns, for each issuance lock stripe, how many issuances had to wait
+     * for another one on the same stripe. Waits on the service lock, which
+     * every registration takes, are not counted.
+     */
+    public long[] getIssuanceContention() {
+        return issuanceLocks.getContentionCounts();
     }
 
     /**
      * Use a TitreTransport
      */
     public boolean useTicket(TitreTransport titre) {
+        boolean used = markTicketUsed(titre);
+        if (used) {
+            saveData();
+        }
+        return used;
+    }
+
+    /**
+     * Uses a ticket in memory only; the caller persists the change
+     */
+    private synchronized boolean markTicketUsed(TitreTransport titre) {
         if (titre instanceof Ticket) {
             Ticket ticket = (Ticket) titre;
             try {
                 ticket.useTicket();
-                saveData();
+                markUsed(ticket.getCurrentId());
+                validations.record(DayClock.getDefault().getClock().millis());
+                for (TitreTransportListener listener : listeners) {
+                    listener.onUsed(ticket);
+                }
+                changed();
                 return true;
             } catch (IllegalStateException e) {
                 LOGGER.warning("Cannot use invalid ticket: " + e.getMessage());
@@ -134,20 +337,34 @@ public class TitreTransportService {
      * Save a TitreTransport
      */
     public void saveTitre(TitreTransport titre) {
-        // Check if ticket already exists
-        boolean exists = false;
-        for (int i = 0; i < titres.size(); i++) {
-            if (titres.get(i).getCurrentId().equals(titre.getCurrentId())) {
-                titres.set(i, titre);
-                exists = true;
-                break;
+        synchronized (this) {
+            // Check if ticket already exists
+            int id = titre.getCurrentId();
+            int position = titresById.positionOf(id);
+            if (position >= 0) {
+                TitreTransport previous = titres.get(position);
+                for (TitreTransportListener listener : listeners) {
+                    listener.onRemoved(previous);
+                }
+                unindexPersonne(previous);
+                todayTickets.remove(previous);
+                cancelCarteTimers(previous);
+                titres.set(position, titre);
+                titresById.put(id, titre, position);
+                usedTicketIds.clear(id);
+                if (titre instanceof Ticket && ((Ticket) titre).isUsed()) {
+                    markUsed(id);
+                }
+                indexPersonne(titre);
+                indexDay(titre);
+            } else {
+                addTitre(titre);
             }
+            for (TitreTransportListener listener : listeners) {
+                listener.onIssued(titre);
+            }
+            changed();
         }
-
-        if (!exists) {
-            titres.add(titre);
-        }
-
         saveData();
     }
 
@@ -155,13 +372,477 @@ public class TitreTransportService {
      * Delete a TitreTransport
      */
     public boolean deleteTitre(Integer id) {
-        boolean removed = titres.removeIf(t -> t.getCurrentId().equals(id));
+        boolean removed;
+        synchronized (this) {
+            removed = id != null && removeTitre(id);
+            if (removed) {
+                changed();
+            }
+        }
         if (removed) {
             saveData();
         }
         return removed;
     }
 
+    /**
+     * Deletes all the titres of a personne, in O(number of titres of that
+     * personne). Called when the personne is deleted.
+     *
+     * @return the number of titres removed
+     */
+    public int deleteTitresForPerson(UUID personneId) {
+        int removed = 0;
+        synchronized (this) {
+            List<TitreTransport> dependents = titresByPersonne.get(personneId);
+            if (dependents == null) {
+                return 0;
+            }
+            for (TitreTransport titre : new ArrayList<>(dependents)) {
+                if (removeTitre(titre.getCurrentId())) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                changed();
+            }
+        }
+        if (removed > 0) {
+            LOGGER.info("Deleted " + removed + " TitreTransport records of Personne " + personneId);
+            saveData();
+        }
+        return removed;
+    }
+
+    /**
+     * Applies a point-of-sale event from a {@link TitreEventPipeline} to the
+     * store without persisting it; the pipeline calls {@link #flush()} once per
+     * batch. Sales still take the lock of their personne, so that they
+     * serialize with the direct sales to the same personne.
+     */
+    void applyEvent(TitreEvent event, long sequence, boolean endOfBatch) {
+        switch (event.getKind()) {
+            case SALE_TICKET:
+                event.succeed(issueTicket(event.getPersonne(), event.getModeDePaiement(), false));
+                break;
+            case SALE_CARTE:
+                try {
+                    event.succeed(issueCarte(event.getPersonne(), event.getModeDePaiement(), false));
+                } catch (ReductionImpossibleException e) {
+                    event.fail(e.getMessage());
+                }
+                break;
+            case VALIDATION:
+                TitreTransport titre = getTitreById(event.getTitreId());
+                if (titre == null) {
+                    event.fail("Titre introuvable : " + event.getTitreId());
+                } else if (markTicketUsed(titre)) {
+                    event.succeed(titre);
+                } else {
+                    event.fail("Le ticket n'est pas valide ou déjà utilisé.");
+                }
+                break;
+            default:
+                event.fail("Événement inconnu : " + event.getKind());
+                break;
+        }
+    }
+
+    /**
+     * Writes every titre to a newline-delimited JSON file, one record per line,
+     * gzipped if the file name ends with ".gz". The file holds the titres sold
+     * when the export starts; a ticket used meanwhile may be written as used.
+     *
+     * @return The number of titres written
+     */
+    public int exportNdjson(File file) throws IOException {
+        int count = NdjsonFiles.write(file, getAllTitres(), titre -> gson.toJsonTree(titre, TitreTransport.class));
+        LOGGER.info("Exported " + count + " TitreTransport records to " + file);
+        return count;
+    }
+
+    /**
+     * Imports the titres of a newline-delimited JSON file, as written by
+     * {@link #exportNdjson(File)}, parsed by several threads. Invalid lines,
+     * titres of unknown personnes and titres whose id is taken, not positive
+     * or far beyond the ids in use are reported and skipped; the others are
+     * saved at once.
+     *
+     * @param workers The number of threads parsing the file
+     */
+    public ImportResult importNdjson(File file, int workers) throws IOException {
+        NdjsonFiles.Parsed<TitreTransport> parsed = NdjsonFiles.read(file, workers,
+                line -> gson.fromJson(line, TitreTransport.class));
+        List<ImportResult.LineError> errors = new ArrayList<>(parsed.errors);
+        int imported = addImported(parsed.records, parsed.lines, errors);
+        if (imported > 0) {
+            saveData();
+        }
+        LOGGER.info("Imported " + imported + " of " + parsed.recordCount + " TitreTransport NDJSON records, "
+                + errors.size() + " rejected");
+        return new ImportResult(parsed.recordCount, imported, errors);
+    }
+
+    /**
+     * Adds imported titres and notifies the listeners, in memory only
+     *
+     * @param lines The line of each titre in the imported file
+     * @param errors Receives the rejected titres, and ends up sorted by line
+     * @return The number of titres added
+     */
+    private synchronized int addImported(List<TitreTransport> imported, List<Long> lines,
+            List<ImportResult.LineError> errors) {
+        int highestId = 0;
+        for (TitreTransport titre : titres) {
+            highestId = Math.max(highestId, titre.getCurrentId());
+        }
+        long maxId = Math.min(Integer.MAX_VALUE, (long) highestId + imported.size() + MAX_IMPORTED_ID_GAP);
+        int added = 0;
+        for (int i = 0; i < imported.size(); i++) {
+            TitreTransport titre = imported.get(i);
+            Integer id = titre.getCurrentId();
+            if (id == null || id <= 0 || id > maxId) {
+                errors.add(new ImportResult.LineError(lines.get(i), "Identifiant invalide : " + id));
+                continue;
+            }
+            if (personneService.getPersonneById(titre.getPersonneId()) == null) {
+                errors.add(new ImportResult.LineError(lines.get(i), "Personne introuvable : " + titre.getPersonneId()));
+                continue;
+            }
+            if (titresById.containsKey(titre.getCurrentId())) {
+                errors.add(new ImportResult.LineError(lines.get(i), "Titre déjà présent : " + titre.getCurrentId()));
+                continue;
+            }
+            TitreTransport.reserveId(titre.getCurrentId());
+            addTitre(titre);
+            recordPastSale(titre);
+            for (TitreTransportListener listener : listeners) {
+                listener.onIssued(titre);
+            }
+            added++;
+        }
+        if (added > 0) {
+            changed();
+        }
+        errors.sort(Comparator.comparingLong(ImportResult.LineError::getLine));
+        return added;
+    }
+
+    /**
+     * Records that a carte was shown at a gate on the given day, for the
+     * validation counts and the listeners
+     *
+     * @return false if the carte is not in the store or not valid on that day
+     */
+    public synchronized boolean validateCarte(CartePersonnelle carte, LocalDate day) {
+        if (titresById.get(carte.getCurrentId()) != carte || day.isBefore(carte.getDateAchat().toLocalDate())
+                || !day.isBefore(carte.getDateExpiration())) {
+            return false;
+        }
+        validations.record(DayClock.getDefault().getClock().millis());
+        for (TitreTransportListener listener : listeners) {
+            listener.onCarteValidated(carte, day);
+        }
+        return true;
+    }
+
+    /**
+     * Marks a ticket validated by an offline gate as used, without persisting.
+     * The ticket counts as valid if it was bought on the day it was used; a
+     * carte if it was valid that day, and it is only reported to the
+     * listeners.
+     */
+    synchronized GateSyncService.Status applyOfflineUse(int titreId, LocalDate usageDay) {
+        TitreTransport titre = getTitreById(titreId);
+        if (titre instanceof CartePersonnelle) {
+            return validateCarte((CartePersonnelle) titre, usageDay)
+                    ? GateSyncService.Status.ACCEPTED : GateSyncService.Status.REJECTED;
+        }
+        if (!(titre instanceof Ticket) || !titre.getDateAchat().toLocalDate().equals(usageDay)) {
+            return GateSyncService.Status.REJECTED;
+        }
+        Ticket ticket = (Ticket) titre;
+        if (ticket.isUsed()) {
+            return GateSyncService.Status.CONFLICT;
+        }
+        ticket.setUsed(true);
+        markUsed(titreId);
+        validations.record(DayClock.getDefault().getClock().millis());
+        for (TitreTransportListener listener : listeners) {
+            listener.onUsed(ticket);
+        }
+        changed();
+        return GateSyncService.Status.ACCEPTED;
+    }
+
+    /**
+     * Persists the titres, used to write batched changes at once. Must not be
+     * called while holding the service lock.
+     */
+    void flush() {
+        saveData();
+    }
+
+    /**
+     * Issues a ticket under the lock of its personne, so that the sales of a
+     * personne happen one at a time. The in-memory registration takes the
+     * service lock and thus serializes with every other sale; only building
+     * the titre and writing the file happen outside of it.
+     */
+    private Ticket issueTicket(Personne personne, ModeDePaiement modeDePaiement, boolean persist) {
+        Ticket ticket;
+        ReentrantLock lock = issuanceLocks.lock(personne.getId());
+        try {
+            ticket = new Ticket(personne, DayClock.getDefault().now());
+            ticket.setModeDePaiement(modeDePaiement);
+            registerTitre(ticket);
+        } finally {
+            lock.unlock();
+        }
+        if (persist) {
+            saveData();
+        }
+        return ticket;
+    }
+
+    private CartePersonnelle issueCarte(Personne personne, ModeDePaiement modeDePaiement, boolean persist)
+            throws ReductionImpossibleException {
+        CartePersonnelle carte;
+        ReentrantLock lock = issuanceLocks.lock(personne.getId());
+        try {
+            carte = new CartePersonnelle(personne);
+            carte.setModeDePaiement(modeDePaiement);
+            registerTitre(carte);
+        } finally {
+            lock.unlock();
+        }
+        if (persist) {
+            saveData();
+        }
+        return carte;
+    }
+
+    /**
+     * Adds a newly issued titre to the store, in memory only
+     */
+    private synchronized void registerTitre(TitreTransport titre) {
+        addTitre(titre);
+        if (titre instanceof Ticket) {
+            ticketSales.record(DayClock.getDefault().getClock().millis());
+        }
+        for (TitreTransportListener listener : listeners) {
+            listener.onIssued(titre);
+        }
+        changed();
+    }
+
+    /**
+     * Appends a titre to the list and registers it in the indexes
+     */
+    private void addTitre(TitreTransport titre) {
+        rollDay();
+        titresById.put(titre.getCurrentId(), titre, titres.size());
+        titres.add(titre);
+        indexPersonne(titre);
+        indexDay(titre);
+        if (titre instanceof Ticket && ((Ticket) titre).isUsed()) {
+            markUsed(titre.getCurrentId());
+        }
+    }
+
+    private void indexDay(TitreTransport titre) {
+        if (titre instanceof Ticket) {
+            Ticket ticket = (Ticket) titre;
+            if (ticket.getPurchaseEpochDay() == todayBucketDay) {
+                todayTickets.add(ticket);
+            }
+        } else if (titre instanceof CartePersonnelle) {
+            scheduleCarteTimers((CartePersonnelle) titre);
+        }
+    }
+
+    /**
+     * Schedules the renewal reminder and the expiry of a carte, skipping those
+     * already past
+     */
+    private void scheduleCarteTimers(CartePersonnelle carte) {
+        long expiration = carte.getExpirationEpochDay();
+        List<TimingWheel.Timeout<CarteEvent>> timeouts = new ArrayList<>(2);
+        TimingWheel.Timeout<CarteEvent> reminder = carteTimers.schedule(
+                new CarteEvent(carte, true), expiration - RENEWAL_REMINDER_DAYS);
+        if (reminder != null) {
+            timeouts.add(reminder);
+        }
+        TimingWheel.Timeout<CarteEvent> expiry = carteTimers.schedule(new CarteEvent(carte, false), expiration);
+        if (expiry != null) {
+            timeouts.add(expiry);
+        }
+        if (!timeouts.isEmpty()) {
+            carteTimeouts.put(carte, timeouts);
+        }
+    }
+
+    private void cancelCarteTimers(TitreTransport titre) {
+        if (titre instanceof CartePersonnelle) {
+            List<TimingWheel.Timeout<CarteEvent>> timeouts = carteTimeouts.remove(titre);
+            if (timeouts != null) {
+                for (TimingWheel.Timeout<CarteEvent> timeout : timeouts) {
+                    carteTimers.cancel(timeout);
+                }
+            }
+        }
+    }
+
+    private void fireCarteEvent(CarteEvent event) {
+        if (event.reminder) {
+            for (TitreTransportListener listener : listeners) {
+                listener.onRenewalReminder(event.carte);
+            }
+        } else {
+            carteTimeouts.remove(event.carte);
+            for (TitreTransportListener listener : listeners) {
+                listener.onCarteExpired(event.carte);
+            }
+        }
+    }
+
+    /**
+     * Moves the day bucket to the current day. On a normal rollover every
+     * ticket of the previous day expires at once; if the clock went back the
+     * bucket is rebuilt from the titres.
+     */
+    private void rollDay() {
+        long today = DayClock.getDefault().today();
+        if (today == todayBucketDay) {
+            return;
+        }
+        long previousDay = todayBucketDay;
+        int expired = todayTickets.size();
+        todayTickets.clear();
+        todayBucketDay = today;
+        if (today < previousDay) {
+            for (TitreTransport titre : titres) {
+                if (titre instanceof Ticket && ((Ticket) titre).getPurchaseEpochDay() == today) {
+                    todayTickets.add((Ticket) titre);
+                }
+            }
+        } else {
+            int pending = carteTimers.size();
+            carteTimers.advanceTo(today, this::fireCarteEvent);
+            LOGGER.info("Day rolled over, expired " + expired + " tickets, fired "
+                    + (pending - carteTimers.size()) + " carte timers");
+        }
+    }
+
+    /**
+     * Empties the day bucket and the carte timers before a reload
+     */
+    private void resetDayIndexes() {
+        todayTickets.clear();
+        todayBucketDay = DayClock.getDefault().today();
+        carteTimeouts.clear();
+        carteTimers = new TimingWheel<>(todayBucketDay);
+    }
+
+    /**
+     * Counts a ticket sold before it reached this store, at its purchase time
+     */
+    private void recordPastSale(TitreTransport titre) {
+        if (titre instanceof Ticket) {
+            ZonedDateTime purchase = titre.getDateAchat().atZone(DayClock.getDefault().getClock().getZone());
+            ticketSales.record(purchase.toInstant().toEpochMilli());
+        }
+    }
+
+    /**
+     * Records a used ticket. The set bit is written before the filter bits, so
+     * a reader seeing a positive from the filter finds it in the set. Bloom
+     * filters cannot forget keys: ids cleared later only count as false
+     * positives until the next load.
+     */
+    private void markUsed(int id) {
+        usedTicketIds.set(id);
+        usedTicketFilter.add(id);
+    }
+
+    private void indexPersonne(TitreTransport titre) {
+        titresByPersonne.computeIfAbsent(titre.getPersonneId(), k -> new ArrayList<>()).add(titre);
+    }
+
+    private void unindexPersonne(TitreTransport titre) {
+        List<TitreTransport> dependents = titresByPersonne.get(titre.getPersonneId());
+        if (dependents != null) {
+            dependents.remove(titre);
+            if (dependents.isEmpty()) {
+                titresByPersonne.remove(titre.getPersonneId());
+            }
+        }
+    }
+
+    /**
+     * Removes a titre in place, keeping the other titres in insertion order
+     * for the table and the data file. The titres after it move up one slot,
+     * which is O(n), but deletions are rare next to lookups by id.
+     */
+    private boolean removeTitre(int id) {
+        int position = titresById.positionOf(id);
+        if (position < 0) {
+            return false;
+        }
+        TitreTransport removed = titresById.remove(id);
+        for (TitreTransportListener listener : listeners) {
+            listener.onRemoved(removed);
+        }
+        unindexPersonne(removed);
+        todayTickets.remove(removed);
+        cancelCarteTimers(removed);
+        usedTicketIds.clear(id);
+        titres.remove(position);
+        for (int i = position; i < titres.size(); i++) {
+            titresById.setPosition(titres.get(i).getCurrentId(), i);
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the indexes after the list has been replaced. Titres whose
+     * personne no longer exists are dropped in bulk.
+     */
+    private void rebuildIndex() {
+        titresById.clear();
+        titresByPersonne.clear();
+        resetDayIndexes();
+        usedTicketIds.clear();
+        ticketSales.clear();
+        List<TitreTransport> loaded = titres;
+        usedTicketFilter = new ScalableBloomFilter(Math.max(USED_FILTER_MIN_CAPACITY, loaded.size()),
+                usedFilterFalsePositiveRate);
+        titres = new ArrayList<>(loaded.size());
+        for (TitreTransport titre : loaded) {
+            TitreTransport.reserveId(titre.getCurrentId());
+        }
+        int orphans = 0;
+        for (TitreTransport titre : loaded) {
+            if (titresById.containsKey(titre.getCurrentId())) {
+                int duplicateId = titre.getCurrentId();
+                titre.renumber();
+                LOGGER.warning("Renumbered duplicate TitreTransport id " + duplicateId + " to " + titre.getCurrentId());
+            }
+            if (personneService.getPersonneById(titre.getPersonneId()) == null) {
+                orphans++;
+                continue;
+            }
+            addTitre(titre);
+            recordPastSale(titre);
+        }
+        if (orphans > 0) {
+            LOGGER.warning("Dropped " + orphans + " TitreTransport records of deleted personnes");
+        }
+        LOGGER.info(String.format("Used ticket filter: %d ids, %d bits, expected false positive rate %.4f"
+                + " (target %.4f)", usedTicketIds.cardinality(), usedTicketFilter.getSizeInBits(),
+                usedTicketFilter.getExpectedFalsePositiveRate(), usedFilterFalsePositiveRate));
+    }
+
     /**
      * Loads TitreTransport data from the JSON file
      */
@@ -169,39 +850,97 @@ public class TitreTransportService {
         File file = new File(TITRE_FILE);
 
         if (file.exists()) {
-            try (Reader reader = new FileReader(file)) {
-                Type titresListType = new TypeToken<ArrayList<TitreTransport>>() {
-                }.getType();
-                List<TitreTransport> loadedTitres = gson.fromJson(reader, titresListType);
-
-                if (loadedTitres != null) {
-                    titres = loadedTitres;
-                } else {
-                    titres = new ArrayList<>();
-                }
+            try {
+                // Records are read one by one, upgraded from older file versions
+                List<TitreTransport> loadedTitres = new ArrayList<>();
+                DataMigrator.readFile(file, DataMigrator.Store.TITRES, record -> {
+                    try {
+                        loadedTitres.add(gson.fromJson(record, TitreTransport.class));
+                    } catch (JsonParseException e) {
+                        LOGGER.warning("Error deserializing TitreTransport: " + e.getMessage());
+                    }
+                });
+                titres = loadedTitres;
+                rebuildIndex();
 
                 LOGGER.info("Loaded " + titres.size() + " TitreTransport records");
-            } catch (IOException | JsonSyntaxException e) {
+            } catch (IOException | JsonParseException | IllegalStateException e) {
                 LOGGER.log(Level.SEVERE, "Error loading TitreTransport data", e);
                 titres = new ArrayList<>();
+                titresById.clear();
+                titresByPersonne.clear();
+                resetDayIndexes();
+                usedTicketIds.clear();
+                usedTicketFilter = new ScalableBloomFilter(USED_FILTER_MIN_CAPACITY, usedFilterFalsePositiveRate);
             }
         } else {
             LOGGER.info("No existing TitreTransport data file found. Starting with empty list.");
         }
+        snapshot = null;
+    }
+
+    /**
+     * Copies the list for readers and {@link #saveData()}, once per version:
+     * writes only drop the previous copy, so a burst of sales read or saved
+     * once costs a single copy
+     */
+    private synchronized List<TitreTransport> publishSnapshot() {
+        if (snapshot == null) {
+            snapshot = Collections.unmodifiableList(new ArrayList<>(titres));
+        }
+        return snapshot;
     }
 
     /**
-     * Saves TitreTransport data to the JSON file
+     * Records a change of the in-memory state, under the service lock. Readers
+     * see it at once; the caller writes it with {@link #saveData()} once it
+     * has released the lock.
+     */
+    private void changed() {
+        version++;
+        snapshot = null;
+    }
+
+    /**
+     * Saves TitreTransport data to the JSON file, unless a later call already
+     * saved every change made so far. Runs without the service lock, so sales
+     * and validations go on while the file is written: it only takes the lock
+     * to copy the list. Writers queue on the save lock, and each one writes all
+     * the changes made while it waited, so a burst of sales costs a few
+     * rewrites instead of one per sale.
      */
     private void saveData() {
-        try (Writer writer = new FileWriter(TITRE_FILE)) {
-            Type titresListType = new TypeToken<ArrayList<TitreTransport>>() {
-            }.getType();
-            String jsonData = gson.toJson(titres, titresListType);
-            writer.write(jsonData);
-            LOGGER.info("Successfully saved " + titres.size() + " TitreTransport records");
-        } catch (IOException e) {
-            LOGGER.log(Level.SEVERE, "Error saving TitreTransport data", e);
+        synchronized (saveLock) {
+            List<TitreTransport> state;
+            long stateVersion;
+            synchronized (this) {
+                if (savedVersion == version) {
+                    return;
+                }
+                stateVersion = version;
+                state = publishSnapshot();
+            }
+            try {
+                DataMigrator.writeFile(new File(TITRE_FILE), state, titre -> gson.toJsonTree(titre, TitreTransport.class));
+                savedVersion = stateVersion;
+                LOGGER.info("Successfully saved " + state.size() + " TitreTransport records");
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error saving TitreTransport data", e);
+            }
+        }
+    }
+
+    /**
+     * A carte timer: its renewal reminder or its expiry
+     */
+    private static class CarteEvent {
+
+        private final CartePersonnelle carte;
+        private final boolean reminder;
+
+        CarteEvent(CartePersonnelle carte, boolean reminder) {
+            this.carte = carte;
+            this.reminder = reminder;
         }
     }
 
@@ -302,6 +1041,9 @@ public class TitreTransportService {
             dataObject.add("dateAchat", context.serialize(titre.getDateAchat()));
             dataObject.add("prix", new JsonPrimitive(Integer.parseInt(titre.getPrix())));
             dataObject.add("personneId", context.serialize(titre.getPersonneId()));
+            if (titre.getModeDePaiement() != null) {
+                dataObject.add("modeDePaiement", context.serialize(titre.getModeDePaiement()));
+            }
 
             // Add specific fields directly to data object based on type
             if (titre instanceof Ticket) {
@@ -310,6 +1052,7 @@ public class TitreTransportService {
             } else if (titre instanceof CartePersonnelle) {
                 CartePersonnelle carte = (CartePersonnelle) titre;
                 dataObject.add("type", context.serialize(carte.getType()));
+                dataObject.add("dateExpiration", context.serialize(carte.getDateExpiration()));
             }
 
             // Add the data object to the result
@@ -340,27 +1083,21 @@ public class TitreTransportService {
 
                 TitreTransport titre;
 
-                Personne personne = personneService.getPersonneById(personneId);
+                // The personne is resolved once for the whole list after loading
                 switch (type) {
                     case "Ticket":
                         boolean used = data.has("used") && data.get("used").getAsBoolean();
-
-                        // get personne with id personneId
-                        if (personne == null) {
-                            throw new JsonParseException("Personne not found for ID: " + personneId);
-                        }
-
-                        titre = new Ticket(personne, dateAchat);
-                        ((Ticket) titre).setUsed(used);
+                        titre = new Ticket(personneId, dateAchat, used);
                         break;
 
                     case "CartePersonnelle":
                         TypeCarte typeCarte = data.has("type")
                                 ? context.deserialize(data.get("type"), TypeCarte.class) : null;
-
-
-
-                        titre = new CartePersonnelle(personne, dateAchat, prix, typeCarte);
+                        // Records written before expiration dates get the default one
+                        LocalDate dateExpiration = data.has("dateExpiration")
+                                ? context.deserialize(data.get("dateExpiration"), LocalDate.class)
+                                : CartePersonnelle.dateExpirationParDefaut(dateAchat);
+                        titre = new CartePersonnelle(personneId, dateAchat, prix, typeCarte, dateExpiration);
                         break;
 
                     default:
@@ -370,7 +1107,10 @@ public class TitreTransportService {
                 // Set common fields using reflection to bypass constructor
                 setFieldValue(titre, "currentId", currentId);
                 setFieldValue(titre, "prix", prix);
-                setFieldValue(titre, "personneId", personneId);
+                // Titres sold before the payment mode was recorded have none
+                if (data.has("modeDePaiement")) {
+                    titre.setModeDePaiement(context.deserialize(data.get("modeDePaiement"), ModeDePaiement.class));
+                }
 
                 return titre;
             } catch (Exception e) {
@@ -388,41 +1128,4 @@ public class TitreTransportService {
             }
         }
     }
-
-    /**
-     * Type adapter for list of TitreTransport
-     */
-    private static class TitreTransportListAdapter implements JsonSerializer<List<TitreTransport>>,
-            JsonDeserializer<List<TitreTransport>> {
-
-        @Override
-        public JsonElement serialize(List<TitreTransport> titres, Type typeOfSrc, JsonSerializationContext context) {
-            JsonArray jsonArray = new JsonArray();
-
-            for (TitreTransport titre : titres) {
-                // Use the TitreTransportAdapter for each item
-                jsonArray.add(context.serialize(titre, TitreTransport.class));
-            }
-
-            return jsonArray;
-        }
-
-        @Override
-        public List<TitreTransport> deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
-                throws JsonParseException {
-            List<TitreTransport> titres = new ArrayList<>();
-            JsonArray jsonArray = json.getAsJsonArray();
-
-            for (JsonElement element : jsonArray) {
-                try {
-                    TitreTransport titre = context.deserialize(element, TitreTransport.class);
-                    titres.add(titre);
-                } catch (Exception e) {
-                    LOGGER.warning("Error deserializing TitreTransport: " + e.getMessage());
-                }
-            }
-
-            return titres;
-        }
-    }
 }
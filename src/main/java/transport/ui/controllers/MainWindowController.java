@@ -48,6 +48,11 @@ public class MainWindowController {
             URL fxmlUrl = getClass().getResource("/ui/PersonnesView.fxml");
             FXMLLoader loader = new FXMLLoader(fxmlUrl);
             Pane personnesView = loader.load();
+
+            // Initialize controller with services
+            PersonnesViewController controller = loader.getController();
+            controller.initialize(personneService);
+
             mainLayout.setCenter(personnesView);
         } catch (IOException e) {
             showError("Erreur lors du chargement de la vue Personnes", e);
@@ -63,7 +68,7 @@ public class MainWindowController {
 
             // Initialize controller with services
             TitresTransportViewController controller = loader.getController();
-            controller.initialize();
+            controller.initialize(titreTransportService, personneService);
 
             mainLayout.setCenter(titresView);
         } catch (IOException e) {
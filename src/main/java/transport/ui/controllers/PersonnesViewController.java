@@ -1,11 +1,17 @@
 package transport.ui.controllers;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
@@ -21,10 +27,12 @@ import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.VBox;
+import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import transport.core.Employe;
 import transport.core.Personne;
 import transport.core.Usager;
+import transport.services.ImportResult;
 import transport.services.PersonneService;
 
 public class PersonnesViewController {
@@ -32,6 +40,9 @@ public class PersonnesViewController {
     @FXML
     private BorderPane view;
 
+    @FXML
+    private Button importButton;
+
     @FXML
     private TableView<Personne> personneTable;
 
@@ -60,10 +71,9 @@ public class PersonnesViewController {
 
     private PersonneService personneService;
 
-    @FXML
-    public void initialize() {
+    public void initialize(PersonneService personneService) {
         try {
-            personneService = new PersonneService();
+            this.personneService = personneService;
             personneList = FXCollections.observableArrayList(personneService.getAllPersonnes());
 
             // Sort the list by birth date in descending order (youngest first)
@@ -205,6 +215,12 @@ public class PersonnesViewController {
                         }
                     }
 
+                    // Homonyms exist, so a likely duplicate is only saved once confirmed
+                    List<Personne> similar = personneService.findPotentialDuplicates(personne);
+                    if (!similar.isEmpty() && !confirmDuplicate(similar)) {
+                        return;
+                    }
+
                     // Save the person if validation passes
                     personneService.savePersonne(personne);
                     refreshTable();
@@ -217,15 +233,92 @@ public class PersonnesViewController {
         }
     }
 
+    @FXML
+    public void importCsv() {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Importer des personnes");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Fichiers CSV", "*.csv", "*.txt"));
+        File file = chooser.showOpenDialog(view.getScene().getWindow());
+        if (file == null) {
+            return;
+        }
+
+        // Large files take a while, keep the window responsive meanwhile
+        importButton.setDisable(true);
+        Thread importer = new Thread(() -> {
+            try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                ImportResult result = personneService.importCsv(reader);
+                Platform.runLater(() -> {
+                    refreshTable();
+                    showImportResult(result);
+                });
+            } catch (IOException e) {
+                Platform.runLater(() -> showError("Erreur lors de la lecture du fichier", e));
+            } catch (RuntimeException e) {
+                // A parsing chunk that failed comes back wrapped in a CompletionException
+                Platform.runLater(() -> showError("Erreur lors de l'import des personnes", e));
+            } finally {
+                Platform.runLater(() -> importButton.setDisable(false));
+            }
+        }, "personne-csv-import");
+        importer.setDaemon(true);
+        importer.start();
+    }
+
+    private boolean confirmDuplicate(List<Personne> similar) {
+        Alert confirmation = new Alert(Alert.AlertType.CONFIRMATION);
+        confirmation.setTitle("Doublon possible");
+        confirmation.setHeaderText("Des personnes semblables sont déjà enregistrées. Enregistrer quand même ?");
+        StringBuilder details = new StringBuilder();
+        for (Personne match : similar) {
+            details.append(match.getName()).append(' ').append(match.getFamilyName()).append(", né(e) le ")
+                    .append(match.getBirthDate().format(DateTimeFormatter.ofPattern("dd/MM/yyyy")));
+            if (match instanceof Employe) {
+                details.append(", matricule ").append(((Employe) match).getMatricule());
+            }
+            details.append('\n');
+        }
+        confirmation.setContentText(details.toString());
+        Optional<ButtonType> answer = confirmation.showAndWait();
+        return answer.isPresent() && answer.get() == ButtonType.OK;
+    }
+
+    private void showImportResult(ImportResult result) {
+        boolean clean = result.getErrors().isEmpty() && result.getWarnings().isEmpty();
+        Alert alert = new Alert(clean ? Alert.AlertType.INFORMATION : Alert.AlertType.WARNING);
+        alert.setTitle("Import terminé");
+        alert.setHeaderText(result.getImportedCount() + " personne(s) importée(s) sur " + result.getLineCount()
+                + " ligne(s)");
+        StringBuilder details = new StringBuilder();
+        appendLines(details, result.getErrors(), "erreur(s)");
+        if (!result.getWarnings().isEmpty()) {
+            details.append("Importées, doublons possibles :\n");
+            appendLines(details, result.getWarnings(), "doublon(s) possible(s)");
+        }
+        alert.setContentText(details.length() > 0 ? details.toString() : "Aucune erreur.");
+        alert.setResizable(true);
+        alert.showAndWait();
+    }
+
+    private static void appendLines(StringBuilder details, List<ImportResult.LineError> lines, String label) {
+        int shown = Math.min(20, lines.size());
+        for (int i = 0; i < shown; i++) {
+            details.append(lines.get(i)).append('\n');
+        }
+        if (lines.size() > shown) {
+            details.append("... et ").append(lines.size() - shown).append(" autre(s) ").append(label).append('\n');
+        }
+    }
+
     private void refreshTable() {
         try {
-            personneList.clear();
-            List<Personne> allPersonnes = personneService.getAllPersonnes();
+            // The service returns an unmodifiable list, sort a copy of it
+            List<Personne> allPersonnes = new ArrayList<>(personneService.getAllPersonnes());
 
             // Sort by birth date in descending order before adding to table
             allPersonnes.sort((p1, p2) -> p2.getBirthDate().compareTo(p1.getBirthDate()));
 
-            personneList.addAll(allPersonnes);
+            personneList.setAll(allPersonnes);
         } catch (Exception e) {
             showError("Erreur lors du rafraîchissement des données", e);
         }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.URL;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
@@ -63,11 +64,10 @@ public class TitresTransportViewController {
     private TitreTransportService titreService;
     private PersonneService personneService;
 
-    @FXML
-    public void initialize() {
+    public void initialize(TitreTransportService titreService, PersonneService personneService) {
         try {
-            personneService = new PersonneService();
-            titreService = new TitreTransportService(personneService);
+            this.personneService = personneService;
+            this.titreService = titreService;
             titreList = FXCollections.observableArrayList(titreService.getAllTitres());
 
             // Sort the list by date in descending order (most recent first)
@@ -116,7 +116,7 @@ public class TitresTransportViewController {
             } else if (data.getValue() instanceof CartePersonnelle) {
                 CartePersonnelle carte = (CartePersonnelle) data.getValue();
                 return Bindings.createStringBinding(()
-                        -> carte.isValid() ? "Valide" : "Invalide");
+                        -> carte.isValid() ? "Valide" : "Expirée");
             }
             return Bindings.createStringBinding(() -> "Inconnu");
         });
@@ -237,13 +237,13 @@ public class TitresTransportViewController {
 
     private void refreshTable() {
         try {
-            titreList.clear();
-            List<TitreTransport> allTitres = titreService.getAllTitres();
+            // The service returns an unmodifiable list, sort a copy of it
+            List<TitreTransport> allTitres = new ArrayList<>(titreService.getAllTitres());
 
             // Sort by date in descending order before adding to table
             allTitres.sort((t1, t2) -> t2.getDateAchat().compareTo(t1.getDateAchat()));
 
-            titreList.addAll(allTitres);
+            titreList.setAll(allTitres);
         } catch (Exception e) {
             showError("Erreur lors du rafraîchissement des données", e);
         }